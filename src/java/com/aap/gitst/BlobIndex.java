@@ -0,0 +1,275 @@
+package com.aap.gitst;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Persistent index of the imported blobs keyed by the content id (see
+ * {@link Utils#getContentId(com.starbase.starteam.File)}). The index is shared
+ * by all the branches of the repository.
+ * <p>
+ * The blob SHAs are not known until git fast-import exits, so the marks of
+ * the blobs written during the import are saved to the pending file and are
+ * resolved with the marks exported by fast-import after a successful import
+ * or on the next run.
+ * <p>
+ * The size of each imported blob is recorded as well, because it may differ
+ * from the size of the revision, e.g. if the EOLs are converted on checkout.
+ * The index file is locked while it's read or appended, since it's shared by
+ * the branches, which can be imported concurrently.
+ *
+ * @author Andrey Pavlenko
+ */
+public class BlobIndex {
+    private static final String INDEX_FILE = ".blobs";
+    private static final String PENDING_FILE = ".blobs.pending";
+    private static final String MARKS_FILE = ".blobs.marks";
+    private final File _file;
+    private final File _pendingFile;
+    private final File _marksFile;
+    private final Logger _log;
+    private final ConcurrentMap<String, String> _index = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> _sizes = new ConcurrentHashMap<>();
+    private PrintStream _pending;
+
+    public BlobIndex(final RepoProperties props, final Logger log)
+            throws IOException {
+        _file = new File(props.getGitstDir(), INDEX_FILE);
+        _pendingFile = new File(getBranchDir(props), PENDING_FILE);
+        _marksFile = getMarksFile(props);
+        _log = log;
+        load();
+    }
+
+    /**
+     * @return false if the index file exists but can not be read, so the
+     *         index can not be loaded.
+     */
+    public static boolean isAvailable(final RepoProperties props) {
+        final File f = new File(props.getGitstDir(), INDEX_FILE);
+        return !f.exists() || (f.isFile() && f.canRead());
+    }
+
+    /**
+     * @return the file the fast-import marks should be exported to.
+     */
+    public static File getMarksFile(final RepoProperties props) {
+        return new File(getBranchDir(props), MARKS_FILE);
+    }
+
+    public String get(final String contentId) {
+        return (contentId == null) ? null : _index.get(contentId);
+    }
+
+    /**
+     * Verifies that the blobs exist in the repository and have the expected
+     * size.
+     *
+     * @param ids
+     *            content id to blob SHA map. The missing blobs are removed
+     *            from the map.
+     */
+    public void validate(final Git git, final Map<String, String> ids)
+            throws InterruptedException, IOException {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        final Map<String, Long> sizes = git.getBlobSizes(ids.values());
+
+        for (final Map.Entry<String, String> e : new HashMap<>(ids).entrySet()) {
+            final String id = e.getKey();
+            final Long size = sizes.get(e.getValue());
+            final Long expected = _sizes.get(id);
+
+            if ((size == null)
+                    || ((expected != null) ? (size.longValue() != expected)
+                            : !id.endsWith("-" + size))) {
+                ids.remove(id);
+                _index.remove(id, e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Resolves the blobs of the previous import and starts recording the
+     * blobs of the new one.
+     */
+    public synchronized void beginImport() throws IOException {
+        commitImport();
+        _pendingFile.getParentFile().mkdirs();
+        _pending = new PrintStream(new FileOutputStream(_pendingFile));
+    }
+
+    /**
+     * @param size
+     *            the size of the blob written to fast-import.
+     */
+    public synchronized void addBlob(final String mark,
+            final String contentId, final long size) {
+        if ((_pending != null) && (contentId != null)) {
+            _pending.print(mark.substring(1));
+            _pending.print(' ');
+            _pending.print(contentId);
+            _pending.print(' ');
+            _pending.print(size);
+            _pending.print('\n');
+        }
+    }
+
+    public synchronized void endImport() {
+        if (_pending != null) {
+            _pending.close();
+            _pending = null;
+        }
+    }
+
+    /**
+     * Adds the pending blobs to the index if the marks have been exported
+     * after the pending blobs were recorded.
+     */
+    public synchronized void commitImport() throws IOException {
+        endImport();
+
+        if (!_pendingFile.isFile()) {
+            return;
+        }
+
+        try {
+            if (_marksFile.isFile()
+                    && (_marksFile.lastModified() >= _pendingFile
+                            .lastModified())) {
+                final Map<String, String> marks = readPairs(_marksFile);
+                final Map<String, String> pending = readPairs(_pendingFile);
+                int count = 0;
+
+                try (FileOutputStream fout = new FileOutputStream(_file,
+                        true)) {
+                    final FileLock lock = fout.getChannel().lock();
+
+                    try {
+                        final PrintStream out = new PrintStream(
+                                new BufferedOutputStream(fout));
+
+                        for (final Map.Entry<String, String> e : pending
+                                .entrySet()) {
+                            final String sha = marks.get(':' + e.getKey());
+
+                            if (sha != null) {
+                                // Content id optionally followed by the size
+                                final String v = e.getValue();
+                                final int ind = v.indexOf(' ');
+                                final String id = (ind == -1) ? v : v
+                                        .substring(0, ind);
+                                final String value = (ind == -1) ? sha
+                                        : sha + v.substring(ind);
+                                out.print(id);
+                                out.print(' ');
+                                out.print(value);
+                                out.print('\n');
+                                add(id, value);
+                                count++;
+                            }
+                        }
+
+                        out.flush();
+                    } finally {
+                        lock.release();
+                    }
+                }
+
+                if (_log.isDebugEnabled()) {
+                    _log.debug("Blobs added to the index: " + count);
+                }
+            }
+        } finally {
+            _pendingFile.delete();
+            _marksFile.delete();
+        }
+    }
+
+    public int size() {
+        return _index.size();
+    }
+
+    private void load() throws IOException {
+        if (_file.isFile()) {
+            try (FileInputStream in = new FileInputStream(_file)) {
+                final FileLock lock = in.getChannel().lock(0, Long.MAX_VALUE,
+                        true);
+
+                try {
+                    for (final Map.Entry<String, String> e : readPairs(in)
+                            .entrySet()) {
+                        add(e.getKey(), e.getValue());
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param value
+     *            the blob SHA optionally followed by the blob size.
+     */
+    private void add(final String contentId, final String value) {
+        final int ind = value.indexOf(' ');
+
+        if (ind == -1) {
+            _index.put(contentId, value);
+            _sizes.remove(contentId);
+        } else {
+            try {
+                _sizes.put(contentId, Long.valueOf(value.substring(ind + 1)));
+                _index.put(contentId, value.substring(0, ind));
+            } catch (final NumberFormatException ex) {
+                // Corrupted entry
+            }
+        }
+    }
+
+    private static Map<String, String> readPairs(final File f)
+            throws IOException {
+        try (FileInputStream in = new FileInputStream(f)) {
+            return readPairs(in);
+        }
+    }
+
+    /**
+     * Reads the pairs without closing the stream.
+     */
+    private static Map<String, String> readPairs(final InputStream in)
+            throws IOException {
+        final Map<String, String> m = new HashMap<>();
+        final BufferedReader r = new BufferedReader(new InputStreamReader(in,
+                "UTF-8"));
+
+        for (String s = r.readLine(); s != null; s = r.readLine()) {
+            final int ind = s.indexOf(' ');
+
+            if (ind != -1) {
+                m.put(s.substring(0, ind), s.substring(ind + 1).trim());
+            }
+        }
+
+        return m;
+    }
+
+    private static File getBranchDir(final RepoProperties props) {
+        return new File(props.getGitstDir(), props.getBranchName());
+    }
+}
@@ -0,0 +1,379 @@
+package com.aap.gitst;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pool of at most the specified number of objects. When all the objects are
+ * in use, the caller waits until an object is released or the timeout
+ * expires. The most recently used idle object is taken first, so that the
+ * rest stay idle and are evicted after the idle timeout. An object idle for a
+ * while is validated before it is returned. An object checked out longer than
+ * the lease timeout is considered leaked: it is reclaimed, i.e. removed from
+ * the pool and destroyed, when another caller is waiting for an object.
+ *
+ * @author Andrey Pavlenko
+ */
+public abstract class BoundedObjectPool<T> {
+    private final int _max;
+    private final long _timeout;
+    private final long _idleTimeout;
+    private final long _validateAfter;
+    private final long _leaseTimeout;
+    private final Deque<Idle<T>> _idle = new ArrayDeque<>();
+    /**
+     * The active objects and their checkout times, KEPT for the objects that
+     * are never reclaimed.
+     */
+    private final Map<T, Long> _active = new IdentityHashMap<>();
+    private final long _startTime = System.currentTimeMillis();
+    private int _creating;
+    private int _created;
+    private int _destroyed;
+    private int _invalid;
+    private int _abandoned;
+    private int _reclaimed;
+    private long _waitTime;
+    private static final Long KEPT = Long.valueOf(-1);
+
+    /**
+     * @param timeout
+     *            max time in milliseconds to wait for an object.
+     * @param idleTimeout
+     *            time in milliseconds after which an idle object is evicted.
+     * @param validateAfter
+     *            time in milliseconds after which an idle object is validated
+     *            before it is returned.
+     * @param leaseTimeout
+     *            time in milliseconds after which a checked out object is
+     *            reclaimed or 0 to never reclaim the objects.
+     */
+    public BoundedObjectPool(final int max, final long timeout,
+            final long idleTimeout, final long validateAfter,
+            final long leaseTimeout) {
+        _max = Math.max(1, max);
+        _timeout = timeout;
+        _idleTimeout = idleTimeout;
+        _validateAfter = validateAfter;
+        _leaseTimeout = leaseTimeout;
+    }
+
+    protected abstract T create();
+
+    protected abstract void destroy(T obj);
+
+    /**
+     * @return false if the object is broken and should be destroyed.
+     */
+    protected abstract boolean validate(T obj);
+
+    /**
+     * Called when a leaked object is reclaimed, before it is destroyed.
+     *
+     * @param time
+     *            time in milliseconds the object has been checked out.
+     */
+    protected void reclaimed(final T obj, final long time) {
+    }
+
+    public T get() throws InterruptedException, TimeoutException {
+        return get(true);
+    }
+
+    /**
+     * Takes an object without waiting, even if the max number of the objects
+     * is reached. The object is destroyed on release if the pool is full.
+     */
+    public T getExtra() {
+        try {
+            return get(false);
+        } catch (final InterruptedException | TimeoutException ex) {
+            // Never thrown without waiting
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private T get(final boolean bounded) throws InterruptedException,
+            TimeoutException {
+        for (;;) {
+            final List<T> evicted = new ArrayList<>();
+            final Map<T, Long> reclaimed = new IdentityHashMap<>();
+            final T obj;
+            final boolean validate;
+
+            try {
+                synchronized (this) {
+                    final long start = System.currentTimeMillis();
+                    final long deadline = start + _timeout;
+
+                    for (;;) {
+                        final long now = System.currentTimeMillis();
+                        evict(now, evicted);
+
+                        if (bounded && ((_active.size() + _creating) >= _max)) {
+                            reclaim(now, reclaimed);
+                        }
+
+                        if (!_idle.isEmpty()) {
+                            final Idle<T> i = _idle.pollFirst();
+                            obj = i._obj;
+                            validate = (now - i._time) >= _validateAfter;
+                            _active.put(obj, now);
+                            break;
+                        } else if (!bounded
+                                || ((_active.size() + _creating) < _max)) {
+                            obj = null;
+                            validate = false;
+                            _creating++;
+                            break;
+                        } else if (now >= deadline) {
+                            _waitTime += now - start;
+                            throw new TimeoutException("No object released in "
+                                    + _timeout + " ms.");
+                        }
+
+                        wait(deadline - now);
+                    }
+
+                    _waitTime += System.currentTimeMillis() - start;
+                }
+            } finally {
+                for (final Map.Entry<T, Long> e : reclaimed.entrySet()) {
+                    reclaimed(e.getKey(), e.getValue());
+                    destroyQuietly(e.getKey());
+                }
+
+                destroyAll(evicted);
+            }
+
+            if (obj == null) {
+                return createNew();
+            } else if (!validate || validate(obj)) {
+                return obj;
+            }
+
+            synchronized (this) {
+                _invalid++;
+            }
+
+            discard(obj);
+        }
+    }
+
+    /**
+     * Returns the object to the pool. The objects abandoned or reclaimed
+     * before are ignored.
+     */
+    public void release(final T obj) {
+        final List<T> evicted = new ArrayList<>();
+
+        synchronized (this) {
+            if (_active.remove(obj) != null) {
+                if ((_active.size() + _idle.size() + _creating) >= _max) {
+                    // An extra object
+                    evicted.add(obj);
+                } else {
+                    final long now = System.currentTimeMillis();
+                    _idle.addFirst(new Idle<>(obj, now));
+                    evict(now, evicted);
+                }
+
+                notifyAll();
+            }
+        }
+
+        destroyAll(evicted);
+    }
+
+    /**
+     * Removes the object from the pool and destroys it.
+     */
+    public void discard(final T obj) {
+        if (remove(obj)) {
+            destroyQuietly(obj);
+        }
+    }
+
+    /**
+     * Removes the object still in use by a request that is no longer awaited
+     * and destroys it, the following release or discard of the object is
+     * ignored.
+     */
+    public void abandon(final T obj) {
+        if (remove(obj)) {
+            synchronized (this) {
+                _abandoned++;
+            }
+
+            destroyQuietly(obj);
+        }
+    }
+
+    /**
+     * Excludes the checked out object from the reclamation. The object is
+     * held until it's released or the pool is cleared.
+     */
+    public synchronized void keep(final T obj) {
+        if (_active.containsKey(obj)) {
+            _active.put(obj, KEPT);
+        }
+    }
+
+    public void clear() {
+        final List<T> objects = new ArrayList<>();
+
+        synchronized (this) {
+            for (final Idle<T> i : _idle) {
+                objects.add(i._obj);
+            }
+
+            objects.addAll(_active.keySet());
+            _idle.clear();
+            _active.clear();
+            notifyAll();
+        }
+
+        destroyAll(objects);
+    }
+
+    public synchronized int getActive() {
+        return _active.size();
+    }
+
+    public synchronized int getIdle() {
+        return _idle.size();
+    }
+
+    public synchronized int getCreated() {
+        return _created;
+    }
+
+    public synchronized int getAbandoned() {
+        return _abandoned;
+    }
+
+    public synchronized int getReclaimed() {
+        return _reclaimed;
+    }
+
+    /**
+     * @return total time in milliseconds spent waiting for the objects.
+     */
+    public synchronized long getWaitTime() {
+        return _waitTime;
+    }
+
+    /**
+     * @return average number of the objects created per minute.
+     */
+    public synchronized double getCreationRate() {
+        final long time = Math.max(1, System.currentTimeMillis() - _startTime);
+        return (_created * 60000.0) / time;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "active " + _active.size() + ", idle " + _idle.size()
+                + ", created " + _created + String.format(" (%.2f/min)",
+                        getCreationRate()) + ", destroyed " + _destroyed
+                + ", invalid " + _invalid + ", abandoned " + _abandoned
+                + ", reclaimed " + _reclaimed + ", waited " + _waitTime
+                + " ms.";
+    }
+
+    private synchronized boolean remove(final T obj) {
+        if (_active.remove(obj) != null) {
+            notifyAll();
+            return true;
+        }
+
+        return false;
+    }
+
+    private T createNew() {
+        T obj = null;
+
+        try {
+            obj = create();
+            return obj;
+        } finally {
+            synchronized (this) {
+                _creating--;
+
+                if (obj != null) {
+                    _active.put(obj, System.currentTimeMillis());
+                    _created++;
+                } else {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the objects idle longer than the idle timeout. The oldest
+     * objects are at the tail of the queue.
+     */
+    private void evict(final long now, final List<T> evicted) {
+        for (Idle<T> i = _idle.peekLast(); (i != null)
+                && ((now - i._time) >= _idleTimeout); i = _idle.peekLast()) {
+            _idle.pollLast();
+            evicted.add(i._obj);
+        }
+    }
+
+    /**
+     * Removes the objects checked out longer than the lease timeout.
+     */
+    private void reclaim(final long now, final Map<T, Long> reclaimed) {
+        if (_leaseTimeout <= 0) {
+            return;
+        }
+
+        for (final Iterator<Map.Entry<T, Long>> it = _active.entrySet()
+                .iterator(); it.hasNext();) {
+            final Map.Entry<T, Long> e = it.next();
+            final long time = e.getValue();
+
+            if ((time != KEPT) && ((now - time) >= _leaseTimeout)) {
+                it.remove();
+                reclaimed.put(e.getKey(), now - time);
+                _reclaimed++;
+            }
+        }
+    }
+
+    private void destroyAll(final List<T> objects) {
+        for (final T obj : objects) {
+            destroyQuietly(obj);
+        }
+    }
+
+    private void destroyQuietly(final T obj) {
+        synchronized (this) {
+            _destroyed++;
+        }
+
+        try {
+            destroy(obj);
+        } catch (final RuntimeException ex) {
+            // The object is already broken
+        }
+    }
+
+    private static final class Idle<T> {
+        final T _obj;
+        final long _time;
+
+        Idle(final T obj, final long time) {
+            _obj = obj;
+            _time = time;
+        }
+    }
+}
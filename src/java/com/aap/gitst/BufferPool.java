@@ -0,0 +1,73 @@
+package com.aap.gitst;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of the memory buffers for the small file revisions. The
+ * buffers are allocated on demand and the caller blocks when all of them are
+ * in use.
+ *
+ * @author Andrey Pavlenko
+ */
+public class BufferPool {
+    private final int _bufferSize;
+    private final int _maxBuffers;
+    private final BlockingQueue<Buffer> _free;
+    private final AtomicInteger _allocated = new AtomicInteger();
+
+    public BufferPool(final int maxBuffers, final int bufferSize) {
+        _maxBuffers = maxBuffers;
+        _bufferSize = bufferSize;
+        _free = new ArrayBlockingQueue<>(maxBuffers);
+    }
+
+    public int getBufferSize() {
+        return _bufferSize;
+    }
+
+    public int getAllocated() {
+        return _allocated.get();
+    }
+
+    public Buffer take() throws InterruptedException {
+        final Buffer b = _free.poll();
+
+        if (b != null) {
+            return b;
+        }
+
+        for (;;) {
+            final int n = _allocated.get();
+
+            if (n >= _maxBuffers) {
+                return _free.take();
+            } else if (_allocated.compareAndSet(n, n + 1)) {
+                return new Buffer(_bufferSize);
+            }
+        }
+    }
+
+    public void release(final Buffer b) {
+        if (b.getBuffer().length > (_bufferSize << 1)) {
+            // Do not keep the buffers grown by the unexpectedly large files
+            _free.offer(new Buffer(_bufferSize));
+        } else {
+            b.reset();
+            _free.offer(b);
+        }
+    }
+
+    public static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer(final int size) {
+            super(size);
+        }
+
+        public byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
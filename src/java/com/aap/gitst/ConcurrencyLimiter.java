@@ -0,0 +1,100 @@
+package com.aap.gitst;
+
+/**
+ * Adaptive limit of the concurrent server requests. The limit is adjusted
+ * according to the measured latency with AIMD: it grows while the latency is
+ * close to the best observed one and is halved when the latency rises or a
+ * request fails. Until the first decrease, the limit grows exponentially.
+ *
+ * @author Andrey Pavlenko
+ */
+public class ConcurrencyLimiter {
+    /**
+     * The latency exceeding the baseline by this factor is a sign of overload.
+     */
+    private static final int TOLERANCE = 2;
+    private final int _max;
+    private int _limit;
+    private int _threshold;
+    private int _inFlight;
+    private int _peak;
+    private int _successes;
+    private int _sinceDecrease;
+    private long _baseline;
+
+    public ConcurrencyLimiter(final int initial, final int max) {
+        _max = Math.max(1, max);
+        _limit = Math.max(1, Math.min(initial, _max));
+        _threshold = _max;
+    }
+
+    public synchronized int getLimit() {
+        return _limit;
+    }
+
+    /**
+     * @return peak number of the concurrent requests.
+     */
+    public synchronized int getPeak() {
+        return _peak;
+    }
+
+    /**
+     * Waits until the number of the concurrent requests is below the limit.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (_inFlight >= _limit) {
+            wait();
+        }
+
+        _inFlight++;
+
+        if (_inFlight > _peak) {
+            _peak = _inFlight;
+        }
+    }
+
+    /**
+     * @param latency
+     *            the request latency in nanoseconds, normalized to the
+     *            expected request cost.
+     * @param success
+     *            false if the request failed.
+     */
+    public synchronized void release(final long latency, final boolean success) {
+        _inFlight--;
+        _sinceDecrease++;
+
+        if (success && ((_baseline == 0) || (latency < _baseline))) {
+            _baseline = latency;
+        } else if (success) {
+            // Let the baseline follow the slowly changing server latency
+            _baseline = Math.min(latency,
+                    _baseline + Math.max(1, _baseline >> 8));
+        }
+
+        if (!success || (latency > (_baseline * TOLERANCE))) {
+            // Decrease not more than once per round of the requests
+            if (_sinceDecrease >= _limit) {
+                _limit = Math.max(1, _limit >> 1);
+                _threshold = _limit;
+                _sinceDecrease = 0;
+                _successes = 0;
+            }
+        } else if (_limit < _max) {
+            if (_limit < _threshold) {
+                _limit++;
+            } else if (++_successes >= _limit) {
+                _limit++;
+                _successes = 0;
+            }
+        }
+
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "limit " + _limit + " of " + _max + ", peak " + _peak;
+    }
+}
@@ -0,0 +1,236 @@
+package com.aap.gitst;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed cache of the file revisions which could be shared by
+ * several clones and processes on the same machine. The files are keyed by
+ * the content MD5 and size and are inserted by atomic rename, so the readers
+ * never see incomplete files. When the cache size exceeds the limit, the
+ * least recently used files are evicted under an exclusive file lock.
+ *
+ * @author Andrey Pavlenko
+ */
+public class ContentCache {
+    private static final String LOCK_FILE = ".lock";
+    private static final String TMP_DIR = ".tmp";
+    private final File _dir;
+    private final long _maxSize;
+    private final Logger _log;
+    private final AtomicLong _added = new AtomicLong();
+    private final AtomicInteger _hits = new AtomicInteger();
+    private final AtomicInteger _counter = new AtomicInteger();
+
+    public ContentCache(final File dir, final long maxSize, final Logger log) {
+        _dir = dir;
+        _maxSize = maxSize;
+        _log = log;
+        new File(dir, TMP_DIR).mkdirs();
+    }
+
+    public File getDir() {
+        return _dir;
+    }
+
+    public int getHits() {
+        return _hits.get();
+    }
+
+    public boolean contains(final com.starbase.starteam.File f) {
+        final File cached = getFile(f);
+        return (cached != null) && cached.isFile();
+    }
+
+    /**
+     * Links or copies the cached content to the specified file.
+     *
+     * @return false if the content is not found in the cache.
+     */
+    public boolean get(final com.starbase.starteam.File f, final File to) {
+        final File cached = getFile(f);
+
+        if ((cached == null) || !cached.isFile()) {
+            return false;
+        }
+
+        try {
+            to.delete();
+            link(cached, to);
+            cached.setLastModified(System.currentTimeMillis());
+            _hits.incrementAndGet();
+            return true;
+        } catch (final IOException ex) {
+            // Evicted by another process
+            to.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Adds the checked out file to the cache.
+     */
+    public void put(final com.starbase.starteam.File f, final File file) {
+        final File cached = getFile(f);
+
+        if ((cached == null) || cached.isFile()
+                || (file.length() != f.getSizeEx())) {
+            return;
+        }
+
+        final File tmp = createTmpFile(cached);
+
+        try {
+            link(file, tmp);
+        } catch (final IOException ex) {
+            failed(cached, tmp, ex);
+            return;
+        }
+
+        add(cached, tmp);
+    }
+
+    /**
+     * Adds the content checked out to memory to the cache.
+     */
+    public void put(final com.starbase.starteam.File f, final byte[] buf,
+            final int len) {
+        final File cached = getFile(f);
+
+        if ((cached == null) || cached.isFile() || (len != f.getSizeEx())) {
+            return;
+        }
+
+        final File tmp = createTmpFile(cached);
+
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(buf, 0, len);
+        } catch (final IOException ex) {
+            failed(cached, tmp, ex);
+            return;
+        }
+
+        add(cached, tmp);
+    }
+
+    private File createTmpFile(final File cached) {
+        return new File(new File(_dir, TMP_DIR), cached.getName() + '.'
+                + Thread.currentThread().getId() + '.'
+                + _counter.incrementAndGet());
+    }
+
+    private void add(final File cached, final File tmp) {
+        final long len = tmp.length();
+
+        try {
+            cached.getParentFile().mkdirs();
+            Files.move(tmp.toPath(), cached.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException ex) {
+            failed(cached, tmp, ex);
+            return;
+        }
+
+        if (_added.addAndGet(len) > (_maxSize / 10)) {
+            _added.set(0);
+            evict();
+        }
+    }
+
+    private void failed(final File cached, final File tmp,
+            final IOException ex) {
+        if (_log.isDebugEnabled()) {
+            _log.debug("Failed to add to the content cache: " + cached + ": "
+                    + ex);
+        }
+
+        tmp.delete();
+    }
+
+    /**
+     * Removes the least recently used files exceeding the cache size.
+     */
+    public void evict() {
+        try (RandomAccessFile raf = new RandomAccessFile(new File(_dir,
+                LOCK_FILE), "rw");
+                FileChannel ch = raf.getChannel();
+                FileLock lock = ch.tryLock()) {
+            if (lock == null) {
+                // Another process is evicting
+                return;
+            }
+
+            final List<File> files = new ArrayList<>();
+            long size = 0;
+
+            for (final File d : listFiles(_dir)) {
+                if (d.isDirectory() && !TMP_DIR.equals(d.getName())) {
+                    for (final File f : listFiles(d)) {
+                        files.add(f);
+                        size += f.length();
+                    }
+                }
+            }
+
+            if (size <= _maxSize) {
+                return;
+            }
+
+            Collections.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(final File f1, final File f2) {
+                    return Long.compare(f1.lastModified(), f2.lastModified());
+                }
+            });
+
+            for (final File f : files) {
+                if (size <= _maxSize) {
+                    break;
+                }
+
+                final long len = f.length();
+
+                if (f.delete()) {
+                    size -= len;
+                }
+            }
+        } catch (final IOException ex) {
+            _log.warn("Failed to clean up the content cache " + _dir + ": "
+                    + ex.getMessage());
+        }
+    }
+
+    private File getFile(final com.starbase.starteam.File f) {
+        final String id = Utils.getContentId(f);
+        return (id == null) ? null : new File(new File(_dir, id.substring(0,
+                2)), id);
+    }
+
+    private static void link(final File from, final File to)
+            throws IOException {
+        try {
+            Files.createLink(to.toPath(), from.toPath());
+        } catch (final IOException | UnsupportedOperationException ex) {
+            // The cache directory could be on another file system
+            Files.copy(from.toPath(), to.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static File[] listFiles(final File dir) {
+        final File[] files = dir.listFiles();
+        return (files == null) ? new File[0] : files;
+    }
+}
@@ -10,9 +10,12 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -312,6 +315,50 @@ public class Git {
         return ignores;
     }
 
+    /**
+     * @return the sizes of the existing blobs.
+     */
+    public Map<String, Long> getBlobSizes(final Collection<String> shas)
+            throws InterruptedException, IOException {
+        final Map<String, Long> sizes = new HashMap<>();
+        final Exec exec = exec("cat-file", "--batch-check");
+        exec.setOutStream(null);
+        final Process proc = exec.exec().getProcess();
+        final Thread writer = new Thread("cat-file writer") {
+            @Override
+            public void run() {
+                try (PrintStream out = new PrintStream(proc.getOutputStream())) {
+                    for (final String sha : shas) {
+                        out.print(sha);
+                        out.print('\n');
+                    }
+                }
+            }
+        };
+
+        try {
+            writer.start();
+            final BufferedReader r = new BufferedReader(new InputStreamReader(
+                    proc.getInputStream()));
+
+            for (String s = r.readLine(); s != null; s = r.readLine()) {
+                // <sha> <type> <size> or <sha> missing
+                final String[] l = s.split(" ");
+
+                if ((l.length == 3) && "blob".equals(l[1])) {
+                    sizes.put(l[0], Long.parseLong(l[2]));
+                }
+            }
+
+            writer.join();
+            exec.waitFor();
+        } finally {
+            proc.destroy();
+        }
+
+        return sizes;
+    }
+
     public CredentialHelper getCredentialHelper(final String protocol,
             final String host, final String user) {
         if (NATIVE_LIB_LOADED) {
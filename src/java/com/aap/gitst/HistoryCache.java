@@ -0,0 +1,377 @@
+package com.aap.gitst;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.starbase.starteam.Item;
+
+/**
+ * Append-only on-disk cache of the item histories. Each entry is keyed by the
+ * item ID and the revision number of the item the history has been requested
+ * for, so an entry becomes stale as soon as the item gets a new revision. The
+ * superseded entries are removed when the cache is opened, if they take more
+ * than a half of the file.
+ *
+ * @author Andrey Pavlenko
+ */
+public class HistoryCache implements AutoCloseable {
+    private static final int MAGIC = 0x67737463;
+    private static final int VERSION = 1;
+    private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+    private final File _file;
+    private final Map<Integer, Entry> _entries = new ConcurrentHashMap<>();
+    private final AtomicInteger _hits = new AtomicInteger();
+    private RandomAccessFile _in;
+    private FileOutputStream _fout;
+    private DataOutputStream _out;
+
+    public HistoryCache(final File file) throws IOException {
+        _file = file;
+        load();
+    }
+
+    public File getFile() {
+        return _file;
+    }
+
+    public int size() {
+        return _entries.size();
+    }
+
+    public int getHits() {
+        return _hits.get();
+    }
+
+    public synchronized Revision[] get(final int itemId, final int revision)
+            throws IOException {
+        final Entry e = _entries.get(itemId);
+
+        if ((e == null) || (e._revision != revision)) {
+            return null;
+        }
+
+        _hits.incrementAndGet();
+        return read(e);
+    }
+
+    /**
+     * @return the revision of the cached history of the item or -1.
+     */
+    public int getRevision(final int itemId) {
+        final Entry e = _entries.get(itemId);
+        return (e == null) ? -1 : e._revision;
+    }
+
+    /**
+     * @return the cached history of the item, which could be older than the
+     *         current revision of the item, or null.
+     */
+    public synchronized Revision[] getStale(final int itemId)
+            throws IOException {
+        final Entry e = _entries.get(itemId);
+        return (e == null) ? null : read(e);
+    }
+
+    private Revision[] read(final Entry e) throws IOException {
+        // The entry is read at once, the file is not buffered
+        final byte[] b = new byte[e._length];
+        _in.seek(e._offset);
+        _in.readFully(b);
+        final DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(b));
+        final Revision[] history = new Revision[in.readInt()];
+
+        for (int i = 0; i < history.length; i++) {
+            history[i] = new Revision(in);
+        }
+
+        return history;
+    }
+
+    public synchronized void put(final int itemId, final int revision,
+            final Item[] history) throws IOException {
+        final Revision[] h = new Revision[history.length];
+
+        for (int i = 0; i < h.length; i++) {
+            h[i] = new Revision(history[i]);
+        }
+
+        put(itemId, revision, h);
+    }
+
+    public synchronized void put(final int itemId, final int revision,
+            final Revision[] history) throws IOException {
+        final ByteArrayOutputStream b = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(b);
+        final long offset = _fout.getChannel().size() + 8;
+        out.writeInt(history.length);
+
+        for (final Revision r : history) {
+            r.write(out);
+        }
+
+        _out.writeInt(itemId);
+        _out.writeInt(revision);
+        b.writeTo(_out);
+        _out.flush();
+        _entries.put(itemId, new Entry(revision, offset, b.size()));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (_out != null) {
+                _out.close();
+            }
+        } finally {
+            if (_in != null) {
+                _in.close();
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        long valid = 0;
+        long dead = 0;
+
+        if (_file.isFile()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(_file)))) {
+                if ((in.readInt() == MAGIC) && (in.readInt() == VERSION)) {
+                    valid = 8;
+
+                    for (;;) {
+                        final int itemId = in.readInt();
+                        final int revision = in.readInt();
+                        final int count = in.readInt();
+                        final long offset = valid + 8;
+                        long len = 12;
+
+                        for (int i = 0; i < count; i++) {
+                            len += Revision.skip(in);
+                        }
+
+                        final Entry old = _entries.put(itemId, new Entry(
+                                revision, offset, (int) (len - 8)));
+
+                        if (old != null) {
+                            dead += old._length + 8;
+                        }
+
+                        valid += len;
+                    }
+                }
+            } catch (final EOFException ex) {
+                // The last entry is incomplete
+            }
+        } else {
+            _file.getParentFile().mkdirs();
+        }
+
+        if (valid == 0) {
+            _entries.clear();
+        } else if ((valid >= MIN_COMPACT_SIZE) && ((dead * 2) > valid)) {
+            valid = compact();
+        }
+
+        try (RandomAccessFile f = new RandomAccessFile(_file, "rw")) {
+            f.setLength(valid);
+
+            if (valid == 0) {
+                f.writeInt(MAGIC);
+                f.writeInt(VERSION);
+                valid = 8;
+            }
+        }
+
+        _in = new RandomAccessFile(_file, "r");
+        _fout = new FileOutputStream(_file, true);
+        _out = new DataOutputStream(new BufferedOutputStream(_fout));
+    }
+
+    /**
+     * Rewrites the file with the live entries only.
+     *
+     * @return the new file length.
+     */
+    private long compact() throws IOException {
+        final File tmp = new File(_file.getParentFile(), _file.getName()
+                + ".tmp");
+        long len = 8;
+
+        try (RandomAccessFile in = new RandomAccessFile(_file, "r");
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            for (final Map.Entry<Integer, Entry> me : _entries.entrySet()) {
+                final Entry e = me.getValue();
+                final byte[] b = new byte[e._length];
+                in.seek(e._offset);
+                in.readFully(b);
+                out.writeInt(me.getKey());
+                out.writeInt(e._revision);
+                out.write(b);
+                me.setValue(new Entry(e._revision, len + 8, e._length));
+                len += b.length + 8;
+            }
+        }
+
+        Files.move(tmp.toPath(), _file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        return len;
+    }
+
+    private static final class Entry {
+        final int _revision;
+        final long _offset;
+        final int _length;
+
+        /**
+         * @param offset
+         *            offset of the revisions count.
+         * @param length
+         *            length of the revisions count and the revisions.
+         */
+        Entry(final int revision, final long offset, final int length) {
+            _revision = revision;
+            _offset = offset;
+            _length = length;
+        }
+    }
+
+    public static final class Revision {
+        private final int _id;
+        private final int _revision;
+        private final int _pathRevision;
+        private final int _viewId;
+        private final double _time;
+        private final int _userId;
+        private final String _dotNotation;
+        private final String _comment;
+
+        public Revision(final Item i) {
+            _id = i.getID();
+            _revision = i.getRevisionNumber();
+            _pathRevision = i.getInt("PathRevision");
+            _viewId = i.getInt("ViewID");
+            _time = i.getModifiedTime().getDoubleValue();
+            _userId = i.getModifiedBy();
+            _dotNotation = i.getDotNotation();
+            _comment = i.getComment();
+        }
+
+        Revision(final DataInput in) throws IOException {
+            _id = in.readInt();
+            _revision = in.readInt();
+            _pathRevision = in.readInt();
+            _viewId = in.readInt();
+            _time = in.readDouble();
+            _userId = in.readInt();
+            _dotNotation = readString(in);
+            _comment = readString(in);
+        }
+
+        public int getId() {
+            return _id;
+        }
+
+        public int getRevision() {
+            return _revision;
+        }
+
+        public int getPathRevision() {
+            return _pathRevision;
+        }
+
+        public int getViewId() {
+            return _viewId;
+        }
+
+        public double getTime() {
+            return _time;
+        }
+
+        public int getUserId() {
+            return _userId;
+        }
+
+        public String getDotNotation() {
+            return _dotNotation;
+        }
+
+        public String getComment() {
+            return _comment;
+        }
+
+        void write(final DataOutput out) throws IOException {
+            out.writeInt(_id);
+            out.writeInt(_revision);
+            out.writeInt(_pathRevision);
+            out.writeInt(_viewId);
+            out.writeDouble(_time);
+            out.writeInt(_userId);
+            writeString(out, _dotNotation);
+            writeString(out, _comment);
+        }
+
+        static long skip(final DataInputStream in) throws IOException {
+            long len = 28;
+            in.readFully(new byte[28]);
+
+            for (int i = 0; i < 2; i++) {
+                final int l = in.readInt();
+                len += 4;
+
+                if (l > 0) {
+                    in.readFully(new byte[l]);
+                    len += l;
+                }
+            }
+
+            return len;
+        }
+
+        private static String readString(final DataInput in)
+                throws IOException {
+            final int len = in.readInt();
+
+            if (len < 0) {
+                return null;
+            }
+
+            final byte[] b = new byte[len];
+            in.readFully(b);
+            return new String(b, "UTF-8");
+        }
+
+        private static void writeString(final DataOutput out, final String s)
+                throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+            } else {
+                final byte[] b = s.getBytes("UTF-8");
+                out.writeInt(b.length);
+                out.write(b);
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.aap.gitst;
+
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_HISTORY_HEDGE;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_HISTORY_RETRIES;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_HISTORY_TIMEOUT;
+import static com.aap.gitst.RepoProperties.PROP_HISTORY_HEDGE;
+import static com.aap.gitst.RepoProperties.PROP_HISTORY_RETRIES;
+import static com.aap.gitst.RepoProperties.PROP_HISTORY_TIMEOUT;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.starbase.starteam.Item;
+import com.starbase.starteam.Server;
+
+/**
+ * Sends the history requests to the server with a deadline. A failed or
+ * timed out request is retried with exponential backoff, the failed
+ * connection is discarded, so the retry gets another one. Optionally, a
+ * request running longer than the 95th percentile of the latency is hedged: a
+ * duplicate request is sent over an extra connection, not counted against
+ * maxconnections, and the first response is taken. A request that timed out
+ * or lost to the hedge is abandoned: the request can not be interrupted, so
+ * its connection is removed from the pool and disconnected.
+ *
+ * @author Andrey Pavlenko
+ */
+public class HistoryFetcher implements AutoCloseable {
+    private static final long INITIAL_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 60000;
+    private static final int LATENCY_SAMPLES = 256;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    private final Repo _repo;
+    private final ConcurrencyLimiter _limiter;
+    private final Logger _log;
+    private final long _timeout;
+    private final int _retries;
+    private final boolean _hedge;
+    private final ExecutorService _executor;
+    private final long[] _latencies = new long[LATENCY_SAMPLES];
+    private int _samples;
+    private long _p95;
+    private final AtomicInteger _retryCount = new AtomicInteger();
+    private final AtomicInteger _timeoutCount = new AtomicInteger();
+    private final AtomicInteger _hedgeCount = new AtomicInteger();
+    private final AtomicInteger _hedgeWins = new AtomicInteger();
+
+    public HistoryFetcher(final Repo repo, final ConcurrencyLimiter limiter) {
+        final RepoProperties props = repo.getRepoProperties();
+        _repo = repo;
+        _limiter = limiter;
+        _log = repo.getLogger();
+        _timeout = TimeUnit.SECONDS.toNanos(Long.parseLong(props.getProperty(
+                PROP_HISTORY_TIMEOUT, PROP_DEFAULT_HISTORY_TIMEOUT)));
+        _retries = Integer.parseInt(props.getProperty(PROP_HISTORY_RETRIES,
+                PROP_DEFAULT_HISTORY_RETRIES));
+        _hedge = "true".equalsIgnoreCase(props.getProperty(
+                PROP_HISTORY_HEDGE, PROP_DEFAULT_HISTORY_HEDGE));
+        _executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "HistoryFetcher-"
+                        + _count.incrementAndGet());
+                // A hung request must not prevent the exit
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+        return _limiter;
+    }
+
+    /**
+     * @param cost
+     *            the expected cost of the request, see
+     *            {@link Utils#getHistoryCost(Item, int)}. The latency is
+     *            normalized to the cost, so that it does not depend on the
+     *            history size.
+     * @return the histories of the items.
+     * @throws RuntimeException
+     *             if all the attempts have failed.
+     */
+    public Item[][] getHistory(final Item[] items, final double[] since,
+            final long cost) throws InterruptedException {
+        long backoff = INITIAL_BACKOFF;
+
+        for (int attempt = 0;; attempt++) {
+            try {
+                return request(items, since, Math.max(1, cost));
+            } catch (final RuntimeException ex) {
+                if (attempt >= _retries) {
+                    throw ex;
+                }
+
+                _retryCount.incrementAndGet();
+
+                if (_log.isDebugEnabled()) {
+                    _log.debug("History request of " + items.length
+                            + " items failed, retrying in " + backoff
+                            + " ms.: " + ex);
+                }
+
+                // The jitter spreads the retries of the concurrent requests
+                Thread.sleep(backoff + (long) (Math.random() * backoff / 2));
+                backoff = Math.min(backoff << 1, MAX_BACKOFF);
+            }
+        }
+    }
+
+    private Item[][] request(final Item[] items, final double[] since,
+            final long cost) throws InterruptedException {
+        final CompletionService<Item[][]> cs = new ExecutorCompletionService<>(
+                _executor);
+        final Map<Future<Item[][]>, Request> requests = new LinkedHashMap<>(2);
+        Future<Item[][]> hedge = null;
+
+        _limiter.acquire();
+        final long start = System.nanoTime();
+        final long deadline = start + _timeout;
+        final long hedgeDelay = getHedgeDelay(cost);
+        final Request call = new Request(items, since, false);
+        long latency = 0;
+        boolean success = false;
+
+        try {
+            requests.put(cs.submit(call), call);
+
+            for (;;) {
+                final long now = System.nanoTime();
+                long wait = deadline - now;
+
+                if ((hedgeDelay > 0) && (hedge == null)) {
+                    wait = Math.min(wait, getHedgeWait(call, hedgeDelay, now));
+                }
+
+                final Future<Item[][]> f = (wait > 0) ? cs.poll(wait,
+                        TimeUnit.NANOSECONDS) : cs.poll();
+
+                if (f != null) {
+                    final Request r = requests.remove(f);
+
+                    try {
+                        final Item[][] history = f.get();
+                        latency = r.getLatency();
+                        success = true;
+
+                        if (f == hedge) {
+                            _hedgeWins.incrementAndGet();
+                        }
+
+                        return history;
+                    } catch (final java.util.concurrent.ExecutionException ex) {
+                        final Throwable cause = ex.getCause();
+
+                        if (!requests.isEmpty()) {
+                            // Wait for the other request
+                        } else if (cause instanceof RuntimeException) {
+                            throw (RuntimeException) cause;
+                        } else {
+                            throw new RuntimeException(cause);
+                        }
+                    }
+                } else if (System.nanoTime() >= deadline) {
+                    _timeoutCount.incrementAndGet();
+                    throw new RuntimeException("History request of "
+                            + items.length + " items timed out");
+                } else if ((hedgeDelay > 0)
+                        && (hedge == null)
+                        && (getHedgeWait(call, hedgeDelay,
+                                System.nanoTime()) <= 0)) {
+                    _hedgeCount.incrementAndGet();
+                    final Request hedgeCall = new Request(items, since, true);
+                    hedge = cs.submit(hedgeCall);
+                    requests.put(hedge, hedgeCall);
+                }
+            }
+        } finally {
+            for (final Map.Entry<Future<Item[][]>, Request> e : requests
+                    .entrySet()) {
+                e.getKey().cancel(true);
+                e.getValue().abandon();
+            }
+
+            latency /= cost;
+            _limiter.release(latency, success);
+
+            if (success) {
+                addLatency(latency);
+            }
+        }
+    }
+
+    /**
+     * The latency samples do not include the wait for the rate limit and the
+     * connection, so the request is hedged when it has been sent to the
+     * server for longer than the delay.
+     *
+     * @return the time to wait before hedging the request.
+     */
+    private static long getHedgeWait(final Request call,
+            final long hedgeDelay, final long now) {
+        final long started = call.getStartTime();
+        return (started == 0) ? hedgeDelay : hedgeDelay - (now - started);
+    }
+
+    /**
+     * @return the time after which the request should be hedged or 0.
+     */
+    private synchronized long getHedgeDelay(final long cost) {
+        return (_hedge && (_samples >= MIN_LATENCY_SAMPLES)) ? _p95 * cost
+                : 0;
+    }
+
+    private synchronized void addLatency(final long latency) {
+        _latencies[_samples++ % LATENCY_SAMPLES] = latency;
+
+        if (_hedge && ((_samples % MIN_LATENCY_SAMPLES) == 0)) {
+            final long[] l = Arrays.copyOf(_latencies,
+                    Math.min(_samples, LATENCY_SAMPLES));
+            Arrays.sort(l);
+            _p95 = l[(l.length * 95) / 100];
+        }
+    }
+
+    /**
+     * History request tracking the connection it's using.
+     */
+    private final class Request implements Callable<Item[][]> {
+        private final Item[] _items;
+        private final double[] _since;
+        private final boolean _extra;
+        private Server _connection;
+        private boolean _abandoned;
+        private long _start;
+        private long _latency;
+
+        Request(final Item[] items, final double[] since, final boolean extra) {
+            _items = items;
+            _since = since;
+            _extra = extra;
+        }
+
+        @Override
+        public Item[][] call() {
+            // One request per item
+            _repo.getRateLimiter().acquire(_items.length);
+
+            if (!Utils.isHistoryPooled()) {
+                synchronized (this) {
+                    _start = System.nanoTime();
+                }
+
+                final Item[][] history = Utils.requestHistory(null, _items,
+                        _since);
+
+                synchronized (this) {
+                    _latency = System.nanoTime() - _start;
+                }
+
+                return history;
+            }
+
+            final Server s = _extra ? _repo.getExtraConnection() : _repo
+                    .getIdleConnection();
+
+            final boolean abandoned;
+
+            synchronized (this) {
+                abandoned = _abandoned;
+
+                if (!abandoned) {
+                    _connection = s;
+                    _start = System.nanoTime();
+                }
+            }
+
+            if (abandoned) {
+                _repo.releaseConnection(s);
+                throw new CancellationException();
+            }
+
+            boolean ok = false;
+
+            try {
+                final Item[][] history = Utils.requestHistory(s, _items,
+                        _since);
+
+                synchronized (this) {
+                    _latency = System.nanoTime() - _start;
+                }
+
+                ok = true;
+                return history;
+            } finally {
+                final boolean lost;
+
+                synchronized (this) {
+                    lost = _abandoned;
+                    _connection = null;
+                }
+
+                if (lost) {
+                    // Already removed from the pool
+                } else if (ok) {
+                    _repo.releaseConnection(s);
+                } else {
+                    _repo.discardConnection(s);
+                }
+            }
+        }
+
+        /**
+         * @return the time the request was sent to the server, after the rate
+         *         limit and the connection were acquired, or 0 if it has not
+         *         been sent yet.
+         */
+        synchronized long getStartTime() {
+            return _start;
+        }
+
+        /**
+         * @return the duration of the server round trip in nanoseconds.
+         */
+        synchronized long getLatency() {
+            return _latency;
+        }
+
+        /**
+         * Disconnects the connection of the request, if any, so that the
+         * request, if hung, fails.
+         */
+        void abandon() {
+            final Server s;
+
+            synchronized (this) {
+                _abandoned = true;
+                s = _connection;
+                _connection = null;
+            }
+
+            if (s != null) {
+                _repo.abandonConnection(s);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        _executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "retries " + _retryCount + ", timeouts " + _timeoutCount
+                + ", hedged " + _hedgeCount + ", won by hedge " + _hedgeWins;
+    }
+}
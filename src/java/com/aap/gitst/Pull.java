@@ -2,7 +2,9 @@ package com.aap.gitst;
 
 import static com.aap.gitst.RepoProperties.META_PROP_ITEM_FILTER;
 import static com.aap.gitst.RepoProperties.META_PROP_LAST_PULL_DATE;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_STREAM;
 import static com.aap.gitst.RepoProperties.PROP_PASSWORD;
+import static com.aap.gitst.RepoProperties.PROP_STREAM;
 import static com.aap.gitst.RepoProperties.PROP_USER;
 
 import java.io.File;
@@ -111,6 +113,41 @@ public class Pull {
         final FastImport fastImport = new FastImport(repo);
         final OLEDate endDate = repo.getServer().getCurrentTime();
         final String lastPull = props.getMetaProperty(META_PROP_LAST_PULL_DATE);
+
+        if ((lastPull == null)
+                && !dryRun
+                && "true".equalsIgnoreCase(props.getProperty(PROP_STREAM,
+                        PROP_DEFAULT_STREAM))) {
+            // Initial import, the commits are submitted while loading
+            final boolean verbose = _log.isDebugEnabled();
+            final int count = (out == null) ? fastImport.stream(endDate,
+                    verbose) : fastImport.stream(endDate, out, verbose);
+
+            if (count == 0) {
+                _log.info("No changes found");
+            }
+        } else {
+            pull(fastImport, out, endDate, lastPull, dryRun);
+        }
+
+        if (_log.isInfoEnabled()) {
+            time = (System.currentTimeMillis() - time) / 1000;
+            _log.info("Total time: "
+                    + ((time / 3600) + "h:" + ((time % 3600) / 60) + "m:"
+                            + (time % 60) + "s"));
+        }
+
+        if (!dryRun) {
+            props.setMetaProperty(META_PROP_LAST_PULL_DATE,
+                    String.valueOf(endDate.getDoubleValue()));
+            props.setMetaProperty(META_PROP_ITEM_FILTER, null);
+            props.saveMeta();
+        }
+    }
+
+    private void pull(final FastImport fastImport, final OutputStream out,
+            final OLEDate endDate, final String lastPull, final boolean dryRun)
+            throws IOException, InterruptedException, ExecutionException {
         final Map<CommitId, Commit> commits;
 
         if (lastPull == null) {
@@ -134,20 +171,6 @@ public class Pull {
                 fastImport.submit(commits.values(), out, verbose);
             }
         }
-
-        if (_log.isInfoEnabled()) {
-            time = (System.currentTimeMillis() - time) / 1000;
-            _log.info("Total time: "
-                    + ((time / 3600) + "h:" + ((time % 3600) / 60) + "m:"
-                            + (time % 60) + "s"));
-        }
-
-        if (!dryRun) {
-            props.setMetaProperty(META_PROP_LAST_PULL_DATE,
-                    String.valueOf(endDate.getDoubleValue()));
-            props.setMetaProperty(META_PROP_ITEM_FILTER, null);
-            props.saveMeta();
-        }
     }
 
     private void dryRun(final Map<CommitId, Commit> commits) {
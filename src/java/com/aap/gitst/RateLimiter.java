@@ -0,0 +1,155 @@
+package com.aap.gitst;
+
+import static com.aap.gitst.RepoProperties.PROP_BYTE_RATE;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_BYTE_RATE;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_NIGHT_HOURS;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_REQUEST_RATE;
+import static com.aap.gitst.RepoProperties.PROP_NIGHT_BYTE_RATE;
+import static com.aap.gitst.RepoProperties.PROP_NIGHT_HOURS;
+import static com.aap.gitst.RepoProperties.PROP_NIGHT_REQUEST_RATE;
+import static com.aap.gitst.RepoProperties.PROP_REQUEST_RATE;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiter of the server requests and the transferred bytes. The
+ * rates are configured separately for the day and the night. A zero rate means
+ * no limit. The bucket holds up to one second of tokens. A request exceeding
+ * the available tokens reserves them in advance and waits until they are
+ * refilled, the following requests wait for the reserved tokens as well.
+ *
+ * @author Andrey Pavlenko
+ */
+public class RateLimiter {
+    private final double _dayRequests;
+    private final double _nightRequests;
+    private final double _dayBytes;
+    private final double _nightBytes;
+    private final int _nightStart;
+    private final int _nightEnd;
+    private final Bucket _requests = new Bucket();
+    private final Bucket _bytes = new Bucket();
+    private long _waitTime;
+
+    public RateLimiter(final RepoProperties props) {
+        final String dayRequests = props.getProperty(PROP_REQUEST_RATE,
+                PROP_DEFAULT_REQUEST_RATE);
+        final String dayBytes = props.getProperty(PROP_BYTE_RATE,
+                PROP_DEFAULT_BYTE_RATE);
+        final String hours = props.getProperty(PROP_NIGHT_HOURS,
+                PROP_DEFAULT_NIGHT_HOURS);
+        final int ind = hours.indexOf('-');
+
+        _dayRequests = Double.parseDouble(dayRequests);
+        _nightRequests = Double.parseDouble(props.getProperty(
+                PROP_NIGHT_REQUEST_RATE, dayRequests));
+        _dayBytes = Double.parseDouble(dayBytes) * 1024;
+        _nightBytes = Double.parseDouble(props.getProperty(
+                PROP_NIGHT_BYTE_RATE, dayBytes)) * 1024;
+
+        if (ind == -1) {
+            throw new IllegalArgumentException("Invalid " + PROP_NIGHT_HOURS
+                    + ": " + hours);
+        }
+
+        _nightStart = Integer.parseInt(hours.substring(0, ind).trim());
+        _nightEnd = Integer.parseInt(hours.substring(ind + 1).trim());
+    }
+
+    public boolean isNight() {
+        final int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+
+        if (_nightStart <= _nightEnd) {
+            return (hour >= _nightStart) && (hour < _nightEnd);
+        } else {
+            return (hour >= _nightStart) || (hour < _nightEnd);
+        }
+    }
+
+    /**
+     * @return total time in milliseconds spent waiting for the tokens.
+     */
+    public synchronized long getWaitTime() {
+        return _waitTime;
+    }
+
+    public void acquire(final int requests) {
+        acquire(requests, 0);
+    }
+
+    /**
+     * Waits until the requests are allowed. The interruption is not thrown,
+     * but the interrupted status of the thread is preserved.
+     */
+    public void acquire(final int requests, final long bytes) {
+        final boolean night = isNight();
+        final long wait = Math.max(_requests.reserve(requests,
+                night ? _nightRequests : _dayRequests), _bytes.reserve(bytes,
+                night ? _nightBytes : _dayBytes));
+
+        if (wait > 0) {
+            synchronized (this) {
+                _waitTime += TimeUnit.NANOSECONDS.toMillis(wait);
+            }
+
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        final boolean night = isNight();
+        return (night ? "night" : "day") + " profile, "
+                + toString(night ? _nightRequests : _dayRequests) + " req/s, "
+                + toString((night ? _nightBytes : _dayBytes) / 1024)
+                + " KB/s, waited " + getWaitTime() + " ms.";
+    }
+
+    private static String toString(final double rate) {
+        return (rate > 0) ? String.valueOf(rate) : "unlimited";
+    }
+
+    private static final class Bucket {
+        private boolean _started;
+        private double _tokens;
+        private long _last;
+
+        /**
+         * Takes the tokens from the bucket.
+         *
+         * @return the time in nanoseconds to wait until the debt is paid.
+         */
+        synchronized long reserve(final double n, final double rate) {
+            if ((rate <= 0) || (n <= 0)) {
+                return 0;
+            }
+
+            final long now = System.nanoTime();
+
+            if (!_started) {
+                // Start with the full bucket
+                _started = true;
+                _tokens = rate;
+            } else {
+                _tokens = Math.min(rate, _tokens + ((now - _last) * rate)
+                        / 1e9);
+            }
+
+            _last = now;
+
+            if (_tokens >= n) {
+                _tokens -= n;
+                return 0;
+            }
+
+            final long wait = (long) (((n - _tokens) * 1e9) / rate);
+            _tokens -= n;
+            return wait;
+        }
+    }
+}
@@ -1,9 +1,10 @@
 package com.aap.gitst;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintStream;
 import java.io.PrintWriter;
 
 import com.aap.gitst.Logger.Level;
@@ -33,7 +34,10 @@ public class Remote {
         final Logger log = new Logger(System.err,
                 !"false".equalsIgnoreCase(System.getenv("GITST_PB")));
         final Remote r = new Remote(log);
-        final PrintStream out = System.out;
+        // The file stream lets fast-import data be transferred from the
+        // channel without copying
+        final OutputStream out = new FileOutputStream(FileDescriptor.out);
+        System.out.flush();
         System.setOut(System.err);
 
         try {
@@ -70,7 +74,8 @@ public class Remote {
         if ("capabilities".equals(line)) {
             w.print("option\n");
             w.print("push\n");
-            w.print("import\n\n");
+            w.print("import\n");
+            w.print('\n');
             w.flush();
 
             read: for (line = r.readLine(); line != null; line = r.readLine()) {
@@ -128,6 +133,9 @@ public class Remote {
                             continue read;
                         }
                     } else if (line.startsWith("import")) {
+                        // Nothing is committed if the stream ends before done
+                        w.print("feature done\n");
+                        w.flush();
                         pull(props, out, dryRun);
                         w.print("done\n");
                         w.flush();
@@ -2,11 +2,21 @@ package com.aap.gitst;
 
 import static com.aap.gitst.RepoProperties.PROP_CA;
 import static com.aap.gitst.RepoProperties.PROP_CATHREADS;
+import static com.aap.gitst.RepoProperties.PROP_CONNECTION_IDLE;
+import static com.aap.gitst.RepoProperties.PROP_CONNECTION_LEASE;
+import static com.aap.gitst.RepoProperties.PROP_CONNECTION_TIMEOUT;
 import static com.aap.gitst.RepoProperties.PROP_DEFAULT_CATHREADS;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_CONNECTION_IDLE;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_CONNECTION_LEASE;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_CONNECTION_TIMEOUT;
 import static com.aap.gitst.RepoProperties.PROP_DEFAULT_IGNORE;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_MAXCONNECTIONS;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_SPOOL_SIZE;
 import static com.aap.gitst.RepoProperties.PROP_DEFAULT_USER_PATTERN;
 import static com.aap.gitst.RepoProperties.PROP_IGNORE;
+import static com.aap.gitst.RepoProperties.PROP_MAXCONNECTIONS;
 import static com.aap.gitst.RepoProperties.PROP_PASSWORD;
+import static com.aap.gitst.RepoProperties.PROP_SPOOL_SIZE;
 import static com.aap.gitst.RepoProperties.PROP_URL;
 import static com.aap.gitst.RepoProperties.PROP_USER;
 import static com.aap.gitst.RepoProperties.PROP_USER_PATTERN;
@@ -21,6 +31,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 import com.starbase.starteam.CheckinManager;
@@ -52,6 +64,7 @@ public class Repo implements AutoCloseable {
     private final RepoProperties _repoProperties;
     private final Logger _logger;
     private final ConnectionPool _pool;
+    private final RateLimiter _rateLimiter;
     private final List<View> _viewCache;
     private final String _branchName;
     private final String _userNamePattern;
@@ -62,6 +75,7 @@ public class Repo implements AutoCloseable {
     private View _view;
     private Folder _rootFolder;
     private File _tempDir;
+    private Spool _spool;
 
     public Repo(final RepoProperties repoProperties, final Logger logger) {
         _branchName = repoProperties.getBranchName();
@@ -69,7 +83,8 @@ public class Repo implements AutoCloseable {
                 PROP_DEFAULT_USER_PATTERN);
         _repoProperties = repoProperties;
         _logger = logger;
-        _pool = new ConnectionPool();
+        _rateLimiter = new RateLimiter(repoProperties);
+        _pool = new ConnectionPool(repoProperties);
         _viewCache = new ArrayList<>();
         _folderCache = new ConcurrentHashMap<>();
         _fileCache = new ConcurrentHashMap<>();
@@ -82,14 +97,58 @@ public class Repo implements AutoCloseable {
       //@formatter:on
     }
 
+    /**
+     * @return the limiter all the server requests should pass through.
+     */
+    public RateLimiter getRateLimiter() {
+        return _rateLimiter;
+    }
+
+    /**
+     * Takes a connection from the pool waiting if all the connections are in
+     * use.
+     */
     public Server getIdleConnection() {
-        return _pool.get();
+        try {
+            return _pool.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (final TimeoutException ex) {
+            throw new RuntimeException("Failed to get a connection: "
+                    + ex.getMessage(), ex);
+        }
     }
 
     public void releaseConnection(final Server s) {
         _pool.release(s);
     }
 
+    /**
+     * Disconnects the connection, which may be broken, instead of returning
+     * it to the pool.
+     */
+    public void discardConnection(final Server s) {
+        _pool.discard(s);
+    }
+
+    /**
+     * Takes a connection without waiting, the connection is not counted
+     * against maxconnections.
+     */
+    public Server getExtraConnection() {
+        return _pool.getExtra();
+    }
+
+    /**
+     * Removes the connection of a request that is no longer awaited from the
+     * pool and disconnects it, so that the request, if hung, fails. The
+     * following release or discard of the connection is ignored.
+     */
+    public void abandonConnection(final Server s) {
+        _pool.abandon(s);
+    }
+
     private Server createNewConnection() {
         final StarTeamURL url = getUrl();
         final RepoProperties props = getRepoProperties();
@@ -218,11 +277,12 @@ public class Repo implements AutoCloseable {
 
                 _view = findView(findProject(server, project), view);
                 _rootFolder = getRootFolder(url, _view);
+                _pool.keep(server);
                 ok = true;
             } finally {
-                if (ok) {
-                    releaseConnection(server);
-                } else {
+                // The connection of the view is not released, so that it's
+                // never evicted from the pool while the view is open
+                if (!ok) {
                     close();
                     _pool.clear();
                 }
@@ -243,6 +303,11 @@ public class Repo implements AutoCloseable {
 
             _view = null;
             _rootFolder = null;
+
+            if (_logger.isDebugEnabled()) {
+                _logger.debug("Connection pool: " + _pool);
+            }
+
             _pool.clear();
             _viewCache.clear();
         }
@@ -333,6 +398,18 @@ public class Repo implements AutoCloseable {
         return _tempDir;
     }
 
+    /**
+     * @return the spool for the file revisions being imported.
+     */
+    public synchronized Spool getSpool() throws IOException {
+        if (_spool == null) {
+            final long quota = Long.parseLong(getRepoProperties().getProperty(
+                    PROP_SPOOL_SIZE, PROP_DEFAULT_SPOOL_SIZE)) * 1024 * 1024;
+            _spool = new Spool(new File(getTempDir(), "spool"), quota);
+        }
+        return _spool;
+    }
+
     public File createTempFile(final String path) throws IOException {
         final File f = createFile(getTempDir(), path);
         f.getParentFile().mkdirs();
@@ -762,10 +839,30 @@ public class Repo implements AutoCloseable {
         }
     }
 
-    private final class ConnectionPool extends SimpleObjectPool<Server> {
+    private final class ConnectionPool extends BoundedObjectPool<Server> {
+        /**
+         * The connections idle for this time are checked before use.
+         */
+        private static final long VALIDATE_AFTER = 60000;
+
+        ConnectionPool(final RepoProperties props) {
+            // Plus the connection of the view
+            super(Integer.parseInt(props.getProperty(PROP_MAXCONNECTIONS,
+                    PROP_DEFAULT_MAXCONNECTIONS)) + 1, TimeUnit.SECONDS
+                    .toMillis(Long.parseLong(props.getProperty(
+                            PROP_CONNECTION_TIMEOUT,
+                            PROP_DEFAULT_CONNECTION_TIMEOUT))),
+                    TimeUnit.SECONDS.toMillis(Long.parseLong(props.getProperty(
+                            PROP_CONNECTION_IDLE,
+                            PROP_DEFAULT_CONNECTION_IDLE))), VALIDATE_AFTER,
+                    TimeUnit.SECONDS.toMillis(Long.parseLong(props.getProperty(
+                            PROP_CONNECTION_LEASE,
+                            PROP_DEFAULT_CONNECTION_LEASE))));
+        }
 
         @Override
         protected Server create() {
+            getRateLimiter().acquire(1);
             return createNewConnection();
         }
 
@@ -773,6 +870,29 @@ public class Repo implements AutoCloseable {
         protected void destroy(final Server s) {
             s.disconnect();
         }
+
+        @Override
+        protected void reclaimed(final Server s, final long time) {
+            _logger.warn("Reclaiming the connection checked out for "
+                    + TimeUnit.MILLISECONDS.toSeconds(time) + " s.");
+        }
+
+        @Override
+        protected boolean validate(final Server s) {
+            try {
+                if (!s.isConnected() || !s.isLoggedOn()) {
+                    return false;
+                }
+
+                // A round trip to the server
+                getRateLimiter().acquire(1);
+                s.getCurrentTime();
+                return true;
+            } catch (final RuntimeException ex) {
+                _logger.debug("Connection validation failed: " + ex);
+                return false;
+            }
+        }
     }
 
     private static final class DeleteHook extends Thread {
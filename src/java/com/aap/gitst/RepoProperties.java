@@ -27,9 +27,42 @@ public class RepoProperties {
     public static final String PROP_IGNORE = "ignore";
     public static final String PROP_USER_PATTERN = "userpattern";
     public static final String PROP_FETCH = "fetch";
+    public static final String PROP_STREAM = "stream";
+    public static final String PROP_CACHE_DIR = "cachedir";
+    public static final String PROP_CACHE_SIZE = "cachesize";
+    public static final String PROP_SPOOL_SIZE = "spoolsize";
+    public static final String PROP_MEM_THRESHOLD = "memthreshold";
+    public static final String PROP_HISTORY_BATCH = "historybatch";
+    public static final String PROP_POPULATE_CHUNK = "populatechunk";
+    public static final String PROP_HISTORY_TIMEOUT = "historytimeout";
+    public static final String PROP_HISTORY_RETRIES = "historyretries";
+    public static final String PROP_HISTORY_HEDGE = "historyhedge";
+    public static final String PROP_REQUEST_RATE = "requestrate";
+    public static final String PROP_BYTE_RATE = "byterate";
+    public static final String PROP_NIGHT_REQUEST_RATE = "nightrequestrate";
+    public static final String PROP_NIGHT_BYTE_RATE = "nightbyterate";
+    public static final String PROP_NIGHT_HOURS = "nighthours";
+    public static final String PROP_CONNECTION_TIMEOUT = "connectiontimeout";
+    public static final String PROP_CONNECTION_IDLE = "connectionidle";
+    public static final String PROP_CONNECTION_LEASE = "connectionlease";
     public static final String PROP_DEFAULT_BRANCH = "master";
     public static final String PROP_DEFAULT_CATHREADS = "3";
     public static final String PROP_DEFAULT_MAXCONNECTIONS = "30";
+    public static final String PROP_DEFAULT_STREAM = "false";
+    public static final String PROP_DEFAULT_CACHE_SIZE = "10240";
+    public static final String PROP_DEFAULT_SPOOL_SIZE = "1024";
+    public static final String PROP_DEFAULT_MEM_THRESHOLD = "0";
+    public static final String PROP_DEFAULT_HISTORY_BATCH = "50";
+    public static final String PROP_DEFAULT_POPULATE_CHUNK = "1000";
+    public static final String PROP_DEFAULT_HISTORY_TIMEOUT = "600";
+    public static final String PROP_DEFAULT_HISTORY_RETRIES = "3";
+    public static final String PROP_DEFAULT_HISTORY_HEDGE = "false";
+    public static final String PROP_DEFAULT_REQUEST_RATE = "0";
+    public static final String PROP_DEFAULT_BYTE_RATE = "0";
+    public static final String PROP_DEFAULT_NIGHT_HOURS = "22-6";
+    public static final String PROP_DEFAULT_CONNECTION_TIMEOUT = "300";
+    public static final String PROP_DEFAULT_CONNECTION_IDLE = "600";
+    public static final String PROP_DEFAULT_CONNECTION_LEASE = "1800";
     public static final String PROP_DEFAULT_IGNORE = "\\.gitignore;.*/\\.gitignore";
     public static final String PROP_DEFAULT_USER_PATTERN = "{0} <{4}.{2}@mycompany.com>";
     public static final String META_PROP_LAST_PULL_DATE = "LastPullDate";
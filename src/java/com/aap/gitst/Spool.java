@@ -0,0 +1,112 @@
+package com.aap.gitst;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.starbase.starteam.Item;
+
+/**
+ * Flat directory for the checked out file revisions waiting to be written to
+ * git fast-import. The files are keyed by the item id and the revision. The
+ * total size of the files is limited by the quota: when the quota is reached,
+ * the checkout blocks until the written files are released.
+ *
+ * @author Andrey Pavlenko
+ */
+public class Spool {
+    private final File _dir;
+    private final long _quota;
+    private final Map<File, Long> _entries = new HashMap<>();
+    private long _used;
+    private long _peak;
+    private long _waitTime;
+
+    public Spool(final File dir, final long quota) {
+        _dir = dir;
+        _quota = quota;
+        dir.mkdirs();
+    }
+
+    public File getDir() {
+        return _dir;
+    }
+
+    public long getQuota() {
+        return _quota;
+    }
+
+    public synchronized long getUsed() {
+        return _used;
+    }
+
+    public synchronized long getPeak() {
+        return _peak;
+    }
+
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    /**
+     * @return total time in milliseconds spent waiting for the quota.
+     */
+    public synchronized long getWaitTime() {
+        return _waitTime;
+    }
+
+    /**
+     * Reserves the space for the item revision waiting until the quota
+     * allows. A file exceeding the quota is only admitted to the empty spool.
+     *
+     * @return the file the revision should be written to.
+     */
+    public synchronized File reserve(final Item item, final long size)
+            throws InterruptedException {
+        final File f = new File(_dir, item.getItemID() + "-"
+                + item.getDotNotation());
+
+        if (_entries.containsKey(f)) {
+            throw new IllegalStateException("Already reserved: " + f);
+        }
+
+        if ((_used > 0) && ((_used + size) > _quota)) {
+            final long start = System.currentTimeMillis();
+
+            do {
+                wait();
+            } while ((_used > 0) && ((_used + size) > _quota));
+
+            _waitTime += System.currentTimeMillis() - start;
+        }
+
+        f.delete();
+        _entries.put(f, size);
+        _used += size;
+
+        if (_used > _peak) {
+            _peak = _used;
+        }
+
+        return f;
+    }
+
+    /**
+     * Deletes the file and releases the reserved space.
+     */
+    public synchronized void release(final File f) {
+        final Long size = _entries.remove(f);
+        f.delete();
+
+        if (size != null) {
+            _used -= size;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Utils.bytesToString(_used) + " / "
+                + Utils.bytesToString(_quota);
+    }
+}
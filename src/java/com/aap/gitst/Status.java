@@ -96,6 +96,7 @@ public class Status {
             _log.debug("Comparing files");
         }
 
+        repo.getRateLimiter().acquire(2);
         rootFolder.populateNow("File", FILE_PROPS, -1);
         rootFolder.populateNow("Folder", FOLDER_PROPS, -1);
         final ProgressBar pb = _log.createProgressBar("Comparing files",
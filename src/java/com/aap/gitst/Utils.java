@@ -1,5 +1,10 @@
 package com.aap.gitst;
 
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_MAXCONNECTIONS;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_POPULATE_CHUNK;
+import static com.aap.gitst.RepoProperties.PROP_MAXCONNECTIONS;
+import static com.aap.gitst.RepoProperties.PROP_POPULATE_CHUNK;
+
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -9,16 +14,28 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.aap.gitst.Logger.ProgressBar;
 import com.borland.starteam.impl.Internals;
+import com.starbase.starteam.CheckoutEvent;
 import com.starbase.starteam.CheckoutListener;
 import com.starbase.starteam.CheckoutManager;
+import com.starbase.starteam.File;
 import com.starbase.starteam.Item;
 import com.starbase.starteam.ItemList;
+import com.starbase.starteam.Server;
 import com.starbase.util.OLEDate;
 
 /**
@@ -28,21 +45,28 @@ public class Utils {
     private static final boolean USE_INTERNALS = !"false"
             .equalsIgnoreCase(System.getenv("GITST_USE_INTERNALS"));
     private static Method GET_HISTORY12;
+    private static Method CREATE_HISTORY12;
     private static final boolean IS_API12;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
 
     static {
         Method getHistory = null;
+        Method createHistory = null;
 
         if (USE_INTERNALS) {
             try {
                 Class.forName("com.starteam.Item");
-                getHistory = Class.forName("com.starteam.Internals12")
-                        .getMethod("getHistory", Repo.class, Item.class);
+                final Class<?> c = Class.forName("com.starteam.Internals12");
+                getHistory = c.getMethod("getHistorySequentially",
+                        Server.class, Item[].class, double[].class);
+                createHistory = c.getMethod("createHistory", Item.class,
+                        HistoryCache.Revision[].class);
             } catch (final Throwable ex) {
             }
         }
 
         GET_HISTORY12 = getHistory;
+        CREATE_HISTORY12 = createHistory;
         IS_API12 = getHistory != null;
     }
 
@@ -72,6 +96,26 @@ public class Utils {
         }
     }
 
+    /**
+     * @return the content MD5 and size of the file revision or null if the
+     *         MD5 is unknown.
+     */
+    public static String getContentId(final com.starbase.starteam.File f) {
+        final byte[] md5 = f.getMD5();
+
+        if ((md5 == null) || (md5.length == 0)) {
+            return null;
+        }
+
+        final StringBuilder sb = new StringBuilder((md5.length * 2) + 12);
+
+        for (final byte b : md5) {
+            sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+
+        return sb.append('-').append(f.getSizeEx()).toString();
+    }
+
     public static String getParentFolderPath(final String path) {
         final int slash = path.lastIndexOf('/');
 
@@ -86,80 +130,525 @@ public class Utils {
         return IS_API12;
     }
 
+    /**
+     * History items can only be re-created from the cached records with the
+     * internal API.
+     */
+    public static boolean isHistoryCacheSupported() {
+        return USE_INTERNALS;
+    }
+
     public static com.starbase.starteam.Item[] getHistory(final Repo repo,
             final com.starbase.starteam.Item i,
-            final com.starbase.starteam.ItemList list) {
-        if (i.isDeleted()) {
-            final OLEDate lastModified = i.getModifiedTime();
-            final OLEDate beforeDeletion = new OLEDate(i.getDeletedTime()
-                    .getLongValue() - 1000);
-            final com.starbase.starteam.View historyView;
-
-            if (lastModified.getDoubleValue() > beforeDeletion.getDoubleValue()) {
-                historyView = repo.getView(lastModified, lastModified);
-            } else {
-                historyView = repo.getView(lastModified, beforeDeletion);
+            final Collection<Item> list) {
+        return getHistory(repo, i, list, null);
+    }
+
+    public static com.starbase.starteam.Item[] getHistory(final Repo repo,
+            final com.starbase.starteam.Item i,
+            final Collection<Item> list,
+            final HistoryCache cache) {
+        return getHistory(repo, Collections.singletonList(i), list, cache)
+                .get(0);
+    }
+
+    public static List<Item[]> getHistory(final Repo repo,
+            final List<Item> items, final Collection<Item> list,
+            final HistoryCache cache) {
+        try {
+            return getHistory(repo, items, list, cache, null);
+        } catch (final InterruptedException ex) {
+            // Never thrown without the fetcher
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Loads the histories of the items. The histories missing in the cache
+     * are requested over a single connection, one request per item.
+     *
+     * @param fetcher
+     *            optional fetcher sending the requests with the retries and
+     *            the concurrency limit.
+     * @return the histories in the order of the items.
+     */
+    public static List<Item[]> getHistory(final Repo repo,
+            final List<Item> items, final Collection<Item> list,
+            final HistoryCache cache, final HistoryFetcher fetcher)
+            throws InterruptedException {
+        final int size = items.size();
+        final Item[] historyItems = new Item[size];
+        final Item[][] histories = new Item[size][];
+        final Item[][] stale = new Item[size][];
+        final List<Integer> missing = new ArrayList<>(size);
+
+        for (int n = 0; n < size; n++) {
+            final Item i = items.get(n);
+            historyItems[n] = getHistoryItem(repo, i);
+            histories[n] = getCachedHistory(i, historyItems[n], cache);
+
+            if (histories[n] == null) {
+                stale[n] = getStaleHistory(i, historyItems[n], cache);
+                missing.add(n);
             }
+        }
+
+        if (!missing.isEmpty()) {
+            final Item[] request = new Item[missing.size()];
+            final double[] since = new double[request.length];
+            long cost = 0;
 
-            // FIXME: this is a workaround to avoid unexpected failures
-            // during checkout of deleted files.
-            com.starbase.starteam.Item historyItem = historyView.findItem(
-                    i.getType(), i.getItemID());
+            for (int n = 0; n < request.length; n++) {
+                final int ind = missing.get(n);
+                request[n] = historyItems[ind];
 
-            if (historyItem == null) {
-                historyItem = i;
+                if (stale[ind] != null) {
+                    // Only the revisions since the last cached one
+                    since[n] = stale[ind][0].getModifiedTime()
+                            .getDoubleValue();
+                    cost += getHistoryCost(request[n],
+                            stale[ind][0].getRevisionNumber());
+                } else {
+                    cost += getHistoryCost(request[n], -1);
+                }
             }
 
-            final com.starbase.starteam.Item[] history = getHistory(repo,
-                    historyItem);
-            final com.starbase.starteam.Item[] h = new com.starbase.starteam.Item[history.length + 1];
-            h[0] = i; // Marker for deleted items
+            final Item[][] loaded = (fetcher == null) ? getHistory(repo,
+                    request, since) : fetcher.getHistory(request, since, cost);
+            final List<Integer> unmerged = new ArrayList<>();
+            long fullCost = 0;
+
+            for (int n = 0; n < request.length; n++) {
+                final int ind = missing.get(n);
+
+                if (stale[ind] != null) {
+                    loaded[n] = mergeHistory(loaded[n], stale[ind],
+                            request[n].getRevisionNumber());
 
-            for (int n = 0; n < history.length; n++) {
-                h[n + 1] = history[n];
-                list.addItem(history[n]);
+                    if (loaded[n] == null) {
+                        unmerged.add(n);
+                        fullCost += getHistoryCost(request[n], -1);
+                    }
+                }
             }
 
-            return h;
-        } else {
-            final com.starbase.starteam.Item[] history = getHistory(repo, i);
+            if (!unmerged.isEmpty()) {
+                // The recent revisions do not match the cached ones, reload
+                // the entire history the same way
+                final Item[] full = new Item[unmerged.size()];
 
-            for (final com.starbase.starteam.Item h : history) {
-                list.addItem(h);
+                for (int n = 0; n < full.length; n++) {
+                    full[n] = request[unmerged.get(n)];
+                }
+
+                final double[] all = new double[full.length];
+                final Item[][] reloaded = (fetcher == null) ? getHistory(
+                        repo, full, all) : fetcher.getHistory(full, all,
+                        fullCost);
+
+                for (int n = 0; n < full.length; n++) {
+                    loaded[unmerged.get(n)] = reloaded[n];
+                }
             }
 
-            return history;
+            for (int n = 0; n < request.length; n++) {
+                final int ind = missing.get(n);
+                histories[ind] = loaded[n];
+
+                if ((cache != null) && isHistoryCacheSupported()) {
+                    final Item key = items.get(ind);
+
+                    try {
+                        cache.put(key.getItemID(), key.getRevisionNumber(),
+                                loaded[n]);
+                    } catch (final IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            }
+        }
+
+        final List<Item[]> result = new ArrayList<>(size);
+
+        for (int n = 0; n < size; n++) {
+            final Item i = items.get(n);
+            final Item[] history = histories[n];
+
+            if (i.isDeleted()) {
+                final Item[] h = new Item[history.length + 1];
+                h[0] = i; // Marker for deleted items
+                System.arraycopy(history, 0, h, 1, history.length);
+                result.add(h);
+            } else {
+                result.add(history);
+            }
+
+            Collections.addAll(list, history);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param cachedRevision
+     *            the revision of the cached history of the item or -1.
+     * @return the cost of the history request of the item, i.e. the expected
+     *         number of the revisions to load plus the request itself.
+     */
+    public static long getHistoryCost(final Item i, final int cachedRevision) {
+        final int rev = i.getRevisionNumber();
+
+        if ((cachedRevision >= 0) && (cachedRevision < rev)) {
+            return 1 + rev - cachedRevision;
+        } else {
+            return 2 + rev;
         }
     }
 
     public static Item[] getHistory(final Repo repo, final Item i) {
+        return getHistory(repo, new Item[] { i }, new double[1])[0];
+    }
+
+    /**
+     * Loads the revisions of the item created since the specified time. Only
+     * the internal API supports this, the public API returns the entire
+     * history.
+     */
+    public static Item[] getHistorySince(final Repo repo, final Item i,
+            final OLEDate since) {
+        return getHistory(repo, new Item[] { i },
+                new double[] { since.getDoubleValue() })[0];
+    }
+
+    static Item[][] getHistory(final Repo repo, final Item[] items,
+            final double[] since) {
+        if (!isHistoryPooled()) {
+            return getHistory(repo, null, items, since);
+        }
+
+        final Server connection = repo.getIdleConnection();
+        boolean discard = true;
+
+        try {
+            final Item[][] history = getHistory(repo, connection, items, since);
+            discard = false;
+            return history;
+        } finally {
+            if (discard) {
+                repo.discardConnection(connection);
+            } else {
+                repo.releaseConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * @return true if the history requests are sent over the pooled
+     *         connections, false if over the connection of the view.
+     */
+    static boolean isHistoryPooled() {
+        return USE_INTERNALS;
+    }
+
+    /**
+     * @param connection
+     *            the pooled connection to send the requests over, ignored if
+     *            the history requests are not pooled.
+     */
+    static Item[][] getHistory(final Repo repo, final Server connection,
+            final Item[] items, final double[] since) {
+        // One request per item
+        repo.getRateLimiter().acquire(items.length);
+        return requestHistory(connection, items, since);
+    }
+
+    /**
+     * Sends the history requests without acquiring the server rate limit.
+     */
+    static Item[][] requestHistory(final Server connection,
+            final Item[] items, final double[] since) {
         if (!USE_INTERNALS) {
-            return i.getHistory();
+            final Item[][] history = new Item[items.length][];
+
+            for (int n = 0; n < items.length; n++) {
+                history[n] = items[n].getHistory();
+            }
+
+            return history;
         } else if (GET_HISTORY12 != null) {
             try {
-                return (Item[]) GET_HISTORY12.invoke(null, repo, i);
+                return (Item[][]) GET_HISTORY12.invoke(null, connection,
+                        items, since);
             } catch (final Exception ex) {
                 throw new RuntimeException(ex);
             }
         } else {
-            return Internals.getHistory(repo, i);
+            return Internals.getHistorySequentially(connection, items,
+                    since);
         }
     }
 
+    /**
+     * Prepends the new revisions to the cached history.
+     *
+     * @param recent
+     *            the revisions since the time of the latest cached revision,
+     *            newest first.
+     * @param current
+     *            the revision number of the item, the complete history must
+     *            start with this revision.
+     * @return the complete history or null if the recent revisions do not
+     *         overlap with the cached ones or do not reach the current
+     *         revision.
+     */
+    private static Item[] mergeHistory(final Item[] recent,
+            final Item[] cached, final int current) {
+        if (recent == null) {
+            return null;
+        }
+
+        final int last = cached[0].getRevisionNumber();
+
+        for (int n = 0; n < recent.length; n++) {
+            if (recent[n].getRevisionNumber() == last) {
+                final Item[] h = new Item[n + cached.length];
+                System.arraycopy(recent, 0, h, 0, n);
+                System.arraycopy(cached, 0, h, n, cached.length);
+                return (h[0].getRevisionNumber() == current) ? h : null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the item the history should be requested for.
+     */
+    private static Item getHistoryItem(final Repo repo, final Item i) {
+        if (!i.isDeleted()) {
+            return i;
+        }
+
+        final OLEDate lastModified = i.getModifiedTime();
+        final OLEDate beforeDeletion = new OLEDate(i.getDeletedTime()
+                .getLongValue() - 1000);
+        final com.starbase.starteam.View historyView;
+
+        if (lastModified.getDoubleValue() > beforeDeletion.getDoubleValue()) {
+            historyView = repo.getView(lastModified, lastModified);
+        } else {
+            historyView = repo.getView(lastModified, beforeDeletion);
+        }
+
+        // FIXME: this is a workaround to avoid unexpected failures
+        // during checkout of deleted files.
+        final Item historyItem = historyView.findItem(i.getType(),
+                i.getItemID());
+        return (historyItem == null) ? i : historyItem;
+    }
+
+    private static Item[] getStaleHistory(final Item key, final Item i,
+            final HistoryCache cache) {
+        if ((cache == null) || !isHistoryCacheSupported()) {
+            return null;
+        }
+
+        try {
+            final HistoryCache.Revision[] cached = cache.getStale(key
+                    .getItemID());
+            return ((cached == null) || (cached.length == 0)) ? null
+                    : createHistory(i, cached);
+        } catch (final IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static Item[] getCachedHistory(final Item key, final Item i,
+            final HistoryCache cache) {
+        if ((cache == null) || !isHistoryCacheSupported()) {
+            return null;
+        }
+
+        try {
+            final HistoryCache.Revision[] cached = cache.get(key.getItemID(),
+                    key.getRevisionNumber());
+            return (cached == null) ? null : createHistory(i, cached);
+        } catch (final IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static Item[] createHistory(final Item i,
+            final HistoryCache.Revision[] revisions) {
+        if (CREATE_HISTORY12 != null) {
+            try {
+                return (Item[]) CREATE_HISTORY12.invoke(null, i, revisions);
+            } catch (final Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        } else {
+            return Internals.createHistory(i, revisions);
+        }
+    }
+
+    /**
+     * Populates the properties of the items by chunks of populatechunk items.
+     * The chunks are populated one after another: populateNow() uses the
+     * connection of the view, so the concurrent requests would be serialized
+     * anyway.
+     */
+    public static void populate(final Repo repo,
+            final List<? extends Item> items, final String[] propertyNames,
+            final ProgressBar pb) throws InterruptedException {
+        final RepoProperties props = repo.getRepoProperties();
+        final int chunkSize = Math.max(1, Integer.parseInt(props.getProperty(
+                PROP_POPULATE_CHUNK, PROP_DEFAULT_POPULATE_CHUNK)));
+
+        for (int off = 0; off < items.size(); off += chunkSize) {
+            final List<? extends Item> c = items.subList(off,
+                    Math.min(off + chunkSize, items.size()));
+            final ItemList list = new ItemList();
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            for (final Item item : c) {
+                list.addItem(item);
+            }
+
+            repo.getRateLimiter().acquire(1);
+            list.populateNow(propertyNames);
+            pb.done(c.size());
+        }
+    }
+
+    /**
+     * Checks out the items by a single checkout manager. A checkout manager
+     * can only be created from the view, so several managers would share the
+     * server connection of the view and would not transfer in parallel.
+     */
     public static void checkout(final Repo repo, final ItemList items,
-            final CheckoutListener listener) throws InterruptedException {
+            final CheckoutListener listener) {
         if (isApi12()) {
-            checkout12(repo, items, listener);
+            // Only one revision of an item per checkout
+            for (final Set<Item> set : splitRevisions(items)) {
+                checkout(repo, set.toArray(new Item[set.size()]), listener);
+            }
         } else {
-            final CheckoutManager mgr = repo.createCheckoutManager();
-            mgr.addCheckoutListener(listener);
-            mgr.checkout(items);
+            final List<Item> l = new ArrayList<>(items.size());
+
+            for (final Enumeration<?> en = items.elements(); en
+                    .hasMoreElements();) {
+                l.add((Item) en.nextElement());
+            }
+
+            checkout(repo, l.toArray(new Item[l.size()]), listener);
+        }
+    }
+
+    /**
+     * Checks out the files to the memory buffers. Each file is checked out by
+     * a separate request, i.e. a round trip per file, the requests are sent by
+     * maxconnections threads. A failed checkout is logged and the content
+     * received so far is passed to the handler, like in the batched checkout.
+     */
+    public static void checkout(final Repo repo, final Collection<File> files,
+            final BufferPool pool, final ContentHandler handler)
+            throws InterruptedException {
+        final RepoProperties props = repo.getRepoProperties();
+        final int maxc = Integer.parseInt(props.getProperty(
+                PROP_MAXCONNECTIONS, PROP_DEFAULT_MAXCONNECTIONS));
+        final int n = Math.min(maxc, files.size());
+        final Queue<File> queue = new ConcurrentLinkedQueue<>(files);
+        final List<Callable<Void>> tasks = new ArrayList<>(n);
+
+        for (int i = 0; i < n; i++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    final CheckoutManager mgr = repo.createCheckoutManager();
+
+                    for (File f = queue.poll(); f != null; f = queue.poll()) {
+                        final BufferPool.Buffer buf = pool.take();
+
+                        boolean successful = false;
+
+                        try {
+                            try {
+                                repo.getRateLimiter().acquire(1, f.getSizeEx());
+                                mgr.checkoutTo(f, buf);
+                                successful = true;
+                            } catch (final RuntimeException ex) {
+                                repo.getLogger().error(
+                                        "Failed to checkout file: "
+                                                + repo.getPath(f), ex);
+                            }
+
+                            handler.handle(f, buf, successful);
+                        } finally {
+                            pool.release(buf);
+                        }
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        invokeAll(tasks);
+    }
+
+    private static void invokeAll(final List<Callable<Void>> tasks)
+            throws InterruptedException {
+        if (tasks.isEmpty()) {
+            return;
+        } else if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (final RuntimeException | InterruptedException ex) {
+                throw ex;
+            } catch (final Exception ex) {
+                throw new RuntimeException(ex);
+            }
+            return;
+        }
+
+        final ExecutorService threadPool = Executors.newFixedThreadPool(tasks
+                .size());
+
+        try {
+            for (final Future<Void> f : threadPool.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (final java.util.concurrent.ExecutionException ex) {
+                    final Throwable cause = ex.getCause();
+
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    } else {
+                        throw new RuntimeException(cause);
+                    }
+                }
+            }
+        } finally {
+            threadPool.shutdownNow();
         }
     }
 
+    private static void checkout(final Repo repo, final Item[] items,
+            final CheckoutListener listener) {
+        final CheckoutManager mgr = repo.createCheckoutManager();
+        mgr.addCheckoutListener(new RateListener(repo.getRateLimiter()));
+        mgr.addCheckoutListener(listener);
+        mgr.checkout(items);
+    }
+
     @SuppressWarnings("unchecked")
-    private static void checkout12(final Repo repo, final ItemList items,
-            final CheckoutListener listener) throws InterruptedException {
+    private static List<Set<Item>> splitRevisions(final ItemList items) {
         final List<Set<Item>> l = new ArrayList<>();
 
         itemsLoop: for (final Enumeration<Item> en = items.elements(); en
@@ -178,10 +667,43 @@ public class Utils {
             l.add(set);
         }
 
-        for (final Set<Item> set : l) {
-            final CheckoutManager mgr = repo.createCheckoutManager();
-            mgr.addCheckoutListener(listener);
-            mgr.checkout(set.toArray(new Item[set.size()]));
+        return l;
+    }
+
+    /**
+     * Charges each file to the rate limiter when its transfer starts, so that
+     * the bytes are limited as the data moves.
+     */
+    private static final class RateListener implements CheckoutListener {
+        private final RateLimiter _limiter;
+
+        RateListener(final RateLimiter limiter) {
+            _limiter = limiter;
         }
+
+        @Override
+        public void onStartFile(final CheckoutEvent e) {
+            _limiter.acquire(1, e.getCurrentFile().getSizeEx());
+        }
+
+        @Override
+        public void onNotifyProgress(final CheckoutEvent e) {
+        }
+    }
+
+    /**
+     * Receives the content of the files checked out to memory.
+     */
+    public static interface ContentHandler {
+
+        /**
+         * @param content
+         *            the file content. The buffer is reused after the method
+         *            returns.
+         * @param successful
+         *            false if the checkout failed and the content may be
+         *            incomplete.
+         */
+        void handle(File f, BufferPool.Buffer content, boolean successful);
     }
 }
@@ -109,6 +109,7 @@ public class Commit implements FastExportCommand {
                     final File f = m.getFile(repo);
                     mod.put(new RemoteFile(f), m);
                 } else {
+                    repo.getRateLimiter().acquire(1);
                     c.exec(repo, this);
                 }
             }
@@ -177,7 +178,10 @@ public class Commit implements FastExportCommand {
             try {
                 final File f = e.getCurrentFile();
                 final FileModify m = _changes.get(new RemoteFile(f));
-                e.setCurrentWorkingFile(m.getLocalFile(_repo));
+                final java.io.File local = m.getLocalFile(_repo);
+                // Each file is charged when its transfer starts
+                _repo.getRateLimiter().acquire(1, local.length());
+                e.setCurrentWorkingFile(local);
                 f.put(f.getPropertyNames().FILE_EXECUTABLE, m.isExecutable()
                         ? 1 : 0);
             } catch (final IOException ex) {
@@ -0,0 +1,243 @@
+package com.aap.gitst.fastimport;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.aap.gitst.Repo;
+import com.starbase.starteam.File;
+
+/**
+ * Paths of the files written to the branch being imported. Used to detect the
+ * commits moving entire directories.
+ *
+ * @author Andrey Pavlenko
+ */
+public class BranchTree {
+    private final TreeSet<String> _files = new TreeSet<>();
+
+    /**
+     * Replaces the renames of all the files of a directory with a single
+     * directory rename.
+     *
+     * @return the changes to be written.
+     */
+    public Collection<FileChange> collapseRenames(final Repo repo,
+            final Collection<FileChange> changes) {
+        final Map<String, List<FileRename>> groups = new LinkedHashMap<>();
+
+        for (final FileChange c : changes) {
+            if (c instanceof FileRename) {
+                final FileRename r = (FileRename) c;
+
+                if ((r.getFileModify() != null)
+                        && (repo.getFile(r.getSourcePath()) == null)) {
+                    final String key = getMovedDirs(r.getSourcePath(),
+                            r.getDestPath());
+
+                    if (key != null) {
+                        List<FileRename> l = groups.get(key);
+
+                        if (l == null) {
+                            l = new ArrayList<>();
+                            groups.put(key, l);
+                        }
+
+                        l.add(r);
+                    }
+                }
+            }
+        }
+
+        if (groups.isEmpty()) {
+            return changes;
+        }
+
+        final Map<FileChange, DirRename> collapsed = new HashMap<>();
+
+        for (final Map.Entry<String, List<FileRename>> e : groups.entrySet()) {
+            final String key = e.getKey();
+            final int ind = key.indexOf('\n');
+            final String src = key.substring(0, ind);
+            final String dest = key.substring(ind + 1);
+            final List<FileRename> renames = e.getValue();
+
+            if (isDirMove(src, dest, renames, changes)) {
+                final DirRename r = new DirRename(src, dest, renames);
+
+                for (final FileRename fr : renames) {
+                    collapsed.put(fr, r);
+                }
+            }
+        }
+
+        if (collapsed.isEmpty()) {
+            return changes;
+        }
+
+        final Set<DirRename> added = new HashSet<>();
+        final List<FileChange> l = new ArrayList<>(changes.size());
+
+        for (final FileChange c : changes) {
+            final DirRename r = collapsed.get(c);
+
+            if (r == null) {
+                l.add(c);
+            } else if (added.add(r)) {
+                l.add(r);
+            }
+        }
+
+        return l;
+    }
+
+    /**
+     * Updates the tree with the changes written to the branch.
+     */
+    public void update(final Repo repo, final Collection<FileChange> changes) {
+        for (final FileChange c : changes) {
+            if (c instanceof FileModify) {
+                _files.add(((FileModify) c).getPath());
+            } else if (c instanceof FileDelete) {
+                remove(((FileDelete) c).getPath());
+            } else if (c instanceof EmptyDir) {
+                _files.add(((EmptyDir) c).getPath() + "/.gitignore");
+            } else if (c instanceof DirRename) {
+                final DirRename r = (DirRename) c;
+                move(r.getSourcePath(), r.getDestPath());
+            } else if (c instanceof FileRename) {
+                final FileRename r = (FileRename) c;
+                final boolean present = repo.getFile(r.getSourcePath()) != null;
+
+                if (r.getFileModify() != null) {
+                    if (!present) {
+                        _files.remove(r.getSourcePath());
+                    }
+
+                    _files.add(r.getDestPath());
+                } else if (!(r.getDestItem() instanceof File)) {
+                    move(r.getSourcePath(), r.getDestPath());
+                } else if (present) {
+                    _files.add(r.getDestPath());
+                } else {
+                    _files.remove(r.getSourcePath());
+                    _files.add(r.getDestPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the renames move all the files of the source directory and
+     * the other changes affect neither the source nor the destination
+     * directory.
+     */
+    private boolean isDirMove(final String src, final String dest,
+            final List<FileRename> renames, final Collection<FileChange> changes) {
+        final String srcPrefix = src + '/';
+        final String destPrefix = dest + '/';
+        final Set<String> dirFiles = subTree(srcPrefix);
+        final Set<FileChange> members = new HashSet<FileChange>(renames);
+
+        if (dest.startsWith(srcPrefix) || src.startsWith(destPrefix)
+                || (dirFiles.size() != renames.size()) || _files.contains(dest)
+                || !subTree(destPrefix).isEmpty()) {
+            return false;
+        }
+
+        for (final FileRename r : renames) {
+            if (!dirFiles.contains(r.getSourcePath())) {
+                return false;
+            }
+        }
+
+        for (final FileChange c : changes) {
+            if (members.contains(c)) {
+                continue;
+            }
+
+            for (final String p : getPaths(c)) {
+                if (p.startsWith(srcPrefix) || p.startsWith(destPrefix)
+                        || p.equals(src) || p.equals(dest)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private Set<String> subTree(final String prefix) {
+        return _files.subSet(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private void remove(final String path) {
+        _files.remove(path);
+        subTree(path + '/').clear();
+    }
+
+    private void move(final String src, final String dest) {
+        final Set<String> sub = subTree(src + '/');
+        final List<String> moved = new ArrayList<>(sub.size());
+
+        for (final Iterator<String> it = sub.iterator(); it.hasNext();) {
+            moved.add(dest + it.next().substring(src.length()));
+            it.remove();
+        }
+
+        _files.addAll(moved);
+    }
+
+    private static String[] getPaths(final FileChange c) {
+        if (c instanceof FileModify) {
+            return new String[] { ((FileModify) c).getPath() };
+        } else if (c instanceof FileDelete) {
+            return new String[] { ((FileDelete) c).getPath() };
+        } else if (c instanceof EmptyDir) {
+            return new String[] { ((EmptyDir) c).getPath() };
+        } else if (c instanceof FileRename) {
+            final FileRename r = (FileRename) c;
+            return new String[] { r.getSourcePath(), r.getDestPath() };
+        } else {
+            return new String[0];
+        }
+    }
+
+    /**
+     * Strips the common trailing path elements.
+     *
+     * @return the source and the destination directories separated by the new
+     *         line or null if the file is moved from or to the root directory.
+     */
+    private static String getMovedDirs(final String src, final String dest) {
+        int s = src.length();
+        int d = dest.length();
+
+        for (;;) {
+            final int ss = src.lastIndexOf('/', s - 1);
+            final int ds = dest.lastIndexOf('/', d - 1);
+
+            if ((ss == -1) || (ds == -1)) {
+                break;
+            } else if (!src.substring(ss, s).equals(dest.substring(ds, d))) {
+                break;
+            }
+
+            s = ss;
+            d = ds;
+        }
+
+        if ((s == src.length()) || (s <= 0) || (d <= 0)) {
+            return null;
+        }
+
+        return src.substring(0, s) + '\n' + dest.substring(0, d);
+    }
+}
@@ -0,0 +1,228 @@
+package com.aap.gitst.fastimport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Collects the changes produced by several threads without contending on the
+ * commits map. Each thread appends the changes to its own buffer. The buffers
+ * are sorted in parallel by the commit time and user and merged into the
+ * commits at the end.
+ *
+ * @author Andrey Pavlenko
+ */
+public class ChangeAggregator {
+    private final ConcurrentMap<CommitId, Commit> _commits;
+    private final List<Buffer> _buffers = new Vector<>();
+    private final ThreadLocal<Buffer> _local = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            final Buffer b = new Buffer();
+            _buffers.add(b);
+            return b;
+        }
+    };
+
+    public ChangeAggregator(final ConcurrentMap<CommitId, Commit> commits) {
+        _commits = commits;
+    }
+
+    public ConcurrentMap<CommitId, Commit> getCommits() {
+        return _commits;
+    }
+
+    public void addChange(final int userId, final long time,
+            final FileChange c) {
+        _local.get().add(userId, time, c, false);
+    }
+
+    /**
+     * Adds the empty directory unless another change creates the same empty
+     * directory.
+     */
+    public void addEmptyDir(final int userId, final long time,
+            final EmptyDir c) {
+        _local.get().add(userId, time, c, true);
+    }
+
+    /**
+     * Merges the collected changes into the commits. Must be called after all
+     * the threads have finished.
+     */
+    public void merge() throws InterruptedException {
+        final List<Buffer> buffers = new ArrayList<>(_buffers);
+        _buffers.clear();
+
+        if (buffers.isEmpty()) {
+            return;
+        }
+
+        final ExecutorService threadPool = Executors.newFixedThreadPool(Math
+                .min(buffers.size(), Runtime.getRuntime()
+                        .availableProcessors()));
+        final List<Callable<Void>> tasks = new ArrayList<>(buffers.size());
+
+        for (final Buffer b : buffers) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    b.sort();
+                    return null;
+                }
+            });
+        }
+
+        try {
+            // An unsorted buffer would break the order of the commits
+            for (final Future<Void> f : threadPool.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (final ExecutionException ex) {
+                    final Throwable cause = ex.getCause();
+
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        throw new RuntimeException(cause);
+                    }
+                }
+            }
+        } finally {
+            threadPool.shutdownNow();
+        }
+
+        final PriorityQueue<Buffer> queue = new PriorityQueue<>(
+                buffers.size());
+        final Set<String> emptyDirs = new HashSet<>();
+
+        for (final Buffer b : buffers) {
+            if (b._size > 0) {
+                queue.add(b);
+
+                for (int i = 0; i < b._size; i++) {
+                    final FileChange c = b._changes[i];
+
+                    if (!b._optional[i] && (c instanceof EmptyDir)) {
+                        emptyDirs.add(((EmptyDir) c).getPath());
+                    }
+                }
+            }
+        }
+
+        Commit cmt = null;
+
+        while (!queue.isEmpty()) {
+            final Buffer b = queue.poll();
+            final int i = b._order[b._pos];
+            final long time = b._times[i];
+            final int user = b._users[i];
+            final FileChange c = b._changes[i];
+
+            if ((cmt == null) || (cmt.getId().getTime() != time)
+                    || (cmt.getId().getUserId() != user)) {
+                final CommitId id = new CommitId(user, time);
+                final Commit newCmt = new Commit(id);
+                final Commit old = _commits.putIfAbsent(id, newCmt);
+                cmt = (old == null) ? newCmt : old;
+            }
+
+            if (!b._optional[i] || emptyDirs.add(((EmptyDir) c).getPath())) {
+                cmt.addChange(c);
+            }
+
+            b._changes[i] = null;
+
+            if (++b._pos < b._size) {
+                queue.add(b);
+            }
+        }
+    }
+
+    private static final class Buffer implements Comparable<Buffer> {
+        long[] _times = new long[64];
+        int[] _users = new int[64];
+        FileChange[] _changes = new FileChange[64];
+        boolean[] _optional = new boolean[64];
+        int[] _order;
+        int _size;
+        int _pos;
+
+        void add(final int userId, final long time, final FileChange c,
+                final boolean optional) {
+            if (_size == _times.length) {
+                final int len = _size << 1;
+                _times = Arrays.copyOf(_times, len);
+                _users = Arrays.copyOf(_users, len);
+                _changes = Arrays.copyOf(_changes, len);
+                _optional = Arrays.copyOf(_optional, len);
+            }
+
+            _times[_size] = time;
+            _users[_size] = userId;
+            _changes[_size] = c;
+            _optional[_size] = optional;
+            _size++;
+        }
+
+        /**
+         * Stable merge sort of the indexes by the time and user.
+         */
+        void sort() {
+            int[] src = new int[_size];
+            int[] dst = new int[_size];
+
+            for (int i = 0; i < _size; i++) {
+                src[i] = i;
+            }
+            for (int w = 1; w < _size; w <<= 1) {
+                for (int lo = 0; lo < _size; lo += w << 1) {
+                    final int mid = Math.min(lo + w, _size);
+                    final int hi = Math.min(lo + (w << 1), _size);
+                    int l = lo;
+                    int r = mid;
+
+                    for (int k = lo; k < hi; k++) {
+                        if ((r >= hi) || ((l < mid)
+                                && (compare(src[l], src[r]) <= 0))) {
+                            dst[k] = src[l++];
+                        } else {
+                            dst[k] = src[r++];
+                        }
+                    }
+                }
+
+                final int[] tmp = src;
+                src = dst;
+                dst = tmp;
+            }
+
+            _order = src;
+        }
+
+        private int compare(final int i1, final int i2) {
+            final int c = Long.compare(_times[i1], _times[i2]);
+            return (c != 0) ? c : Integer.compare(_users[i1], _users[i2]);
+        }
+
+        @Override
+        public int compareTo(final Buffer b) {
+            final int i1 = _order[_pos];
+            final int i2 = b._order[b._pos];
+            final int c = Long.compare(_times[i1], b._times[i2]);
+            return (c != 0) ? c : Integer.compare(_users[i1], b._users[i2]);
+        }
+    }
+}
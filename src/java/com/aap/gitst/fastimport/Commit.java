@@ -5,6 +5,7 @@ import static com.aap.gitst.Repo.LS;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Queue;
@@ -25,6 +26,7 @@ public class Commit implements FastimportCommand {
     private String _committer;
     private String _from;
     private String _comment;
+    private BranchTree _tree;
 
     public Commit(final CommitId id) {
         _id = id;
@@ -101,6 +103,15 @@ public class Commit implements FastimportCommand {
         _from = from;
     }
 
+    /**
+     * @param tree
+     *            if not null, the renames of entire directories are collapsed
+     *            and the tree is updated after the commit is written.
+     */
+    public void setTree(final BranchTree tree) {
+        _tree = tree;
+    }
+
     public void addChange(final FileChange c) {
         getChanges().add(c);
     }
@@ -108,6 +119,18 @@ public class Commit implements FastimportCommand {
     @Override
     public void write(final Repo repo, final PrintStream s) throws IOException,
             InterruptedException {
+        for (final FileChange c : getChanges()) {
+            c.waitForData();
+        }
+
+        // The blobs are written to the same stream by the checkout threads
+        synchronized (s) {
+            writeCommit(repo, s);
+        }
+    }
+
+    private void writeCommit(final Repo repo, final PrintStream s)
+            throws IOException, InterruptedException {
         s.print("commit ");
         s.print(getBranch());
         s.print('\n');
@@ -136,11 +159,18 @@ public class Commit implements FastimportCommand {
             s.print('\n');
         }
 
-        for (final FileChange c : getChanges()) {
+        final Collection<FileChange> changes = (_tree == null) ? getChanges()
+                : _tree.collapseRenames(repo, getChanges());
+
+        for (final FileChange c : changes) {
             c.write(repo, s);
         }
 
         s.print('\n');
+
+        if (_tree != null) {
+            _tree.update(repo, changes);
+        }
     }
 
     @Override
@@ -0,0 +1,110 @@
+package com.aap.gitst.fastimport;
+
+import static com.aap.gitst.RepoProperties.PROP_STREAM;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sorted commits map which releases commits older than the watermark. The
+ * watermark is advanced by the history loader as soon as no older commit is
+ * expected to appear. A commit added behind the released watermark can not be
+ * imported in order, the import fails in this case.
+ *
+ * @author Andrey Pavlenko
+ */
+public class CommitQueue extends ConcurrentSkipListMap<CommitId, Commit> {
+    private static final long serialVersionUID = -3203658400453536466L;
+    private long _released = Long.MIN_VALUE;
+    private long _watermark = Long.MIN_VALUE;
+    private boolean _closed;
+    private boolean _aborted;
+
+    public synchronized long getWatermark() {
+        return _watermark;
+    }
+
+    public synchronized void setWatermark(final long watermark) {
+        if (watermark > _watermark) {
+            _watermark = watermark;
+            notifyAll();
+        }
+    }
+
+    /**
+     * No more commits will be added.
+     */
+    public synchronized void close() {
+        _closed = true;
+        notifyAll();
+    }
+
+    /**
+     * @return false if the queue has already been aborted.
+     */
+    public synchronized boolean abort() {
+        if (_aborted) {
+            return false;
+        }
+
+        _aborted = true;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @throws IllegalStateException
+     *             if the commits with greater time have already been
+     *             released, i.e. the watermark has been moved past a revision
+     *             that was not loaded yet.
+     */
+    @Override
+    public synchronized Commit putIfAbsent(final CommitId key,
+            final Commit value) {
+        if (key.getTime() < _released) {
+            throw new IllegalStateException("The commit of "
+                    + new Date(key.getTime())
+                    + " is older than the commits already imported. Set the "
+                    + PROP_STREAM + " property to false to import the view.");
+        }
+
+        return super.putIfAbsent(key, value);
+    }
+
+    /**
+     * Waits for the commits older than the watermark and removes them from the
+     * queue.
+     *
+     * @return the commits sorted by time or an empty list if the queue is
+     *         closed and there are no more commits.
+     */
+    public synchronized List<Commit> take() throws InterruptedException {
+        for (;;) {
+            if (_aborted) {
+                throw new InterruptedException("Import aborted");
+            } else if (_closed) {
+                return poll(Long.MAX_VALUE);
+            } else if (!isEmpty() && (firstKey().getTime() < _watermark)) {
+                return poll(_watermark);
+            }
+
+            wait();
+        }
+    }
+
+    private List<Commit> poll(final long watermark) {
+        final List<Commit> l = new ArrayList<>();
+        _released = watermark;
+
+        for (Map.Entry<CommitId, Commit> e = firstEntry(); (e != null)
+                && (e.getKey().getTime() < watermark); e = firstEntry()) {
+            remove(e.getKey());
+            l.add(e.getValue());
+        }
+
+        return l;
+    }
+}
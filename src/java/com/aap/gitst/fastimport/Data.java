@@ -1,8 +1,6 @@
 package com.aap.gitst.fastimport;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintStream;
 
 import com.aap.gitst.Repo;
@@ -27,26 +25,12 @@ public class Data implements FastimportCommand {
         final File f = getFile();
         final java.io.File tempFile = java.io.File.createTempFile(f.getName(),
                 ".git-st");
-        @SuppressWarnings("resource")
-        InputStream in = null;
 
         try {
+            repo.getRateLimiter().acquire(1, f.getSizeEx());
             f.checkoutTo(tempFile, 0, true, false, false);
-            in = new FileInputStream(tempFile);
-            s.print("data ");
-            s.print(tempFile.length());
-            s.print('\n');
-
-            final byte[] buffer = new byte[8192];
-            for (int i = in.read(buffer); i != -1; i = in.read(buffer)) {
-                s.write(buffer, 0, i);
-            }
-
-            s.print('\n');
+            FastimportStream.writeData(s, tempFile);
         } finally {
-            if (in != null) {
-                in.close();
-            }
             tempFile.delete();
         }
     }
@@ -0,0 +1,81 @@
+package com.aap.gitst.fastimport;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+
+import com.aap.gitst.Repo;
+
+/**
+ * Rename of an entire directory, replacing the renames of all its files.
+ *
+ * @author Andrey Pavlenko
+ */
+public class DirRename extends FileChange {
+    private final String _sourcePath;
+    private final String _destPath;
+    private final List<FileRename> _renames;
+
+    public DirRename(final String sourcePath, final String destPath,
+            final List<FileRename> renames) {
+        _sourcePath = sourcePath;
+        _destPath = destPath;
+        _renames = renames;
+    }
+
+    public String getSourcePath() {
+        return _sourcePath;
+    }
+
+    public String getDestPath() {
+        return _destPath;
+    }
+
+    public List<FileRename> getRenames() {
+        return _renames;
+    }
+
+    @Override
+    public String getComment() {
+        return null;
+    }
+
+    @Override
+    public int getPriority() {
+        return 2;
+    }
+
+    @Override
+    public void write(final Repo repo, final PrintStream s) throws IOException,
+            InterruptedException {
+        s.print("R ");
+        s.print(Repo.quotePath(getSourcePath()));
+        s.print(' ');
+        s.print(Repo.quotePath(getDestPath()));
+        s.print('\n');
+
+        for (final FileRename r : getRenames()) {
+            if (!isMoved(r)) {
+                r.getFileModify().write(repo, s);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "R " + getSourcePath() + " -> " + getDestPath();
+    }
+
+    /**
+     * @return true if the file content and mode are the same as of the file
+     *         being moved.
+     */
+    static boolean isMoved(final FileRename r) {
+        final FileData data = r.getFileModify().getFileData();
+        final FileData source = data.getSource();
+        return (source != null)
+                && source.getPath().equals(r.getSourcePath())
+                && (FileModify.isExecutable(source.getFile()) == FileModify
+                        .isExecutable(data.getFile()));
+    }
+}
@@ -1,8 +1,15 @@
 package com.aap.gitst.fastimport;
 
 import static com.aap.gitst.RepoProperties.META_PROP_ITEM_FILTER;
+import static com.aap.gitst.RepoProperties.PROP_CACHE_DIR;
+import static com.aap.gitst.RepoProperties.PROP_CACHE_SIZE;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_CACHE_SIZE;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_HISTORY_BATCH;
 import static com.aap.gitst.RepoProperties.PROP_DEFAULT_MAXCONNECTIONS;
+import static com.aap.gitst.RepoProperties.PROP_DEFAULT_MEM_THRESHOLD;
+import static com.aap.gitst.RepoProperties.PROP_HISTORY_BATCH;
 import static com.aap.gitst.RepoProperties.PROP_MAXCONNECTIONS;
+import static com.aap.gitst.RepoProperties.PROP_MEM_THRESHOLD;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -11,30 +18,45 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.EventObject;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.aap.gitst.BlobIndex;
+import com.aap.gitst.BufferPool;
+import com.aap.gitst.ConcurrencyLimiter;
+import com.aap.gitst.ContentCache;
 import com.aap.gitst.Exec;
 import com.aap.gitst.ExecutionException;
 import com.aap.gitst.Git;
+import com.aap.gitst.HistoryCache;
+import com.aap.gitst.HistoryFetcher;
 import com.aap.gitst.ItemFilter;
 import com.aap.gitst.Logger;
 import com.aap.gitst.Logger.ProgressBar;
 import com.aap.gitst.RemoteFile;
 import com.aap.gitst.Repo;
 import com.aap.gitst.RepoProperties;
+import com.aap.gitst.Spool;
 import com.aap.gitst.Utils;
 import com.starbase.starteam.CheckoutEvent;
 import com.starbase.starteam.CheckoutListener;
@@ -49,7 +71,6 @@ import com.starbase.starteam.ItemUpdateEvent;
 import com.starbase.starteam.ItemUpdateListener;
 import com.starbase.starteam.RecycleBin;
 import com.starbase.starteam.Server;
-import com.starbase.starteam.Type;
 import com.starbase.starteam.View;
 import com.starbase.starteam.ViewConfiguration;
 import com.starbase.starteam.ViewConfigurationDiffer;
@@ -60,17 +81,52 @@ import com.starbase.util.OLEDate;
  */
 public class FastImport {
     private static final String[] FILE_PROPS = { "Name", "ModifiedTime",
-            "ModifiedUserID", "Comment", "DotNotation", "ItemDeletedTime",
-            "ItemDeletedUserID", "Executable", "FileSize" };
+            "ModifiedUserID", "DotNotation", "ItemDeletedTime",
+            "ItemDeletedUserID", "Executable", "FileSize", "CreatedTime", "MD5",
+            "ShareState" };
+    private static final String[] COMMENT_PROPS = { "Comment" };
     private static final String[] FOLDER_PROPS = { "Name", "ModifiedTime",
             "ModifiedUserID", "Comment", "WorkingFolder", "DotNotation",
             "ItemDeletedTime", "ItemDeletedUserID" };
+    private static final String HISTORY_CACHE = ".history";
+    private static final int STREAM_CHUNK_SIZE = 1000;
     private final Repo _repo;
     private final Logger _log;
+    private final ContentCache _contentCache;
+    private final BlobIndex _blobIndex;
+    private final BufferPool _bufferPool;
+    private final int _historyBatch;
+    private volatile ChangeAggregator _aggregator;
 
     public FastImport(final Repo repo) {
+        final RepoProperties props = repo.getRepoProperties();
+        final String cacheDir = props.getProperty(PROP_CACHE_DIR, null);
+        final int memThreshold = Integer.parseInt(props.getProperty(
+                PROP_MEM_THRESHOLD, PROP_DEFAULT_MEM_THRESHOLD)) * 1024;
         _repo = repo;
         _log = repo.getLogger();
+
+        if (cacheDir != null) {
+            final long size = Long.parseLong(props.getProperty(
+                    PROP_CACHE_SIZE, PROP_DEFAULT_CACHE_SIZE)) * 1024 * 1024;
+            _contentCache = new ContentCache(new java.io.File(cacheDir), size,
+                    _log);
+        } else {
+            _contentCache = null;
+        }
+
+        if (memThreshold > 0) {
+            // One buffer per connection
+            _bufferPool = new BufferPool(Integer.parseInt(props.getProperty(
+                    PROP_MAXCONNECTIONS, PROP_DEFAULT_MAXCONNECTIONS)),
+                    memThreshold);
+        } else {
+            _bufferPool = null;
+        }
+
+        _historyBatch = Math.max(1, Integer.parseInt(props.getProperty(
+                PROP_HISTORY_BATCH, PROP_DEFAULT_HISTORY_BATCH)));
+        _blobIndex = openBlobIndex(props);
     }
 
     public Repo getRepo() {
@@ -78,14 +134,17 @@ public class FastImport {
     }
 
     public Map<CommitId, Commit> loadChanges(final OLEDate endDate)
-            throws InterruptedException, IOException {
+            throws InterruptedException, IOException, ExecutionException {
         final Repo repo = getRepo();
         final RepoProperties props = repo.getRepoProperties();
         final ConcurrentSkipListMap<CommitId, Commit> commits = new ConcurrentSkipListMap<>();
         final ItemFilter filter = new ItemFilter(
                 props.getMetaProperty(META_PROP_ITEM_FILTER));
-        final List<Item[]> history = loadHistory(filter, commits);
-        processHistory(filter, commits, endDate, history);
+        loadHistory(filter, commits, endDate);
+
+        if (!Utils.isHistoryCacheSupported()) {
+            populateComments(commits.values());
+        }
 
         return commits;
     }
@@ -122,7 +181,8 @@ public class FastImport {
                     + ((System.currentTimeMillis() - time) / 1000) + " seconds");
         }
 
-        for (final IntermediateListener.EventWrapper w : iListener.getEvents()) {
+        for (final IntermediateListener.EventWrapper w : iListener
+                .getEvents(repo)) {
             switch (w._type) {
             case ITEM_ADDED:
                 vListener.itemAdded((ItemUpdateEvent) w._event);
@@ -153,30 +213,20 @@ public class FastImport {
             }
         }
 
-        return vListener.getCommits();
+        final Map<CommitId, Commit> commits = vListener.getCommits();
+        populateComments(commits.values());
+        return commits;
     }
 
     public void submit(final Collection<Commit> commits, final boolean verbose)
             throws IOException, InterruptedException, ExecutionException {
-        final Repo repo = getRepo();
-        final Git git = repo.getGit();
-        final Exec exec = git.fastImport(repo.getBranchName()).exec();
-        final Process proc = exec.getProcess();
-        @SuppressWarnings("resource")
-        final OutputStream out = proc.getOutputStream();
-
-        try {
-            submit(commits, out, verbose);
-            out.close();
-
-            if (exec.waitFor() != 0) {
-                throw new ExecutionException(
-                        "git fast-import failed with exit code: "
-                                + proc.exitValue(), proc.exitValue());
+        fastImport(new StreamWriter() {
+            @Override
+            public void write(final OutputStream out) throws IOException,
+                    InterruptedException, ExecutionException {
+                submit(commits, out, verbose);
             }
-        } finally {
-            proc.destroy();
-        }
+        });
     }
 
     public void submit(final Collection<Commit> commits,
@@ -188,50 +238,253 @@ public class FastImport {
         final ProgressBar b = _log.createProgressBar("Importing to git",
                 commits.size());
         final ExecutorService threadPool = Executors.newSingleThreadExecutor();
-        final PrintStream s = new PrintStream(out);
-        final String from = repo.getGit().showRef(branch);
-        int mark = 0;
-        checkout(commits, threadPool);
+        final PrintStream s = new FastimportStream(out);
+        final AtomicInteger marks = new AtomicInteger();
+        String from = repo.getGit().showRef(branch);
+        // Directory renames are only detected for a new branch
+        final BranchTree tree = (from == null) ? new BranchTree() : null;
+        beginImport(s);
 
-        for (final Commit cmt : commits) {
-            final CommitId id = cmt.getId();
-            final String committer = repo.toCommitter(id.getUserId());
+        try {
+            checkout(commits, threadPool, s, marks);
 
-            if (mark != 0) {
-                cmt.setFrom(':' + String.valueOf(mark));
-            } else if (from != null) {
-                cmt.setFrom(from);
+            for (final Commit cmt : commits) {
+                from = write(cmt, from, marks, tree, branch, s, verbose);
+                b.done(1);
             }
 
-            cmt.setMark(":" + (++mark));
-            cmt.setBranch(branch);
-            cmt.setCommitter(committer);
+            s.flush();
+            out.flush();
+        } finally {
+            endImport();
+        }
 
-            if (verbose && _log.isInfoEnabled()) {
-                _log.info(cmt);
-                _log.info("--------------------------------------------------------------------------------");
+        if (verbose) {
+            _log.info("");
+        }
+        threadPool.shutdown();
+        threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        b.complete();
+
+        if (_log.isDebugEnabled()) {
+            _log.debug("Imported in " + (System.currentTimeMillis() - time)
+                    + " ms.");
+            logSpoolUsage();
+        }
+    }
+
+    /**
+     * Performs initial import of the history streaming the commits to git
+     * fast-import while the history is still being loaded.
+     *
+     * @return the number of imported commits.
+     */
+    public int stream(final OLEDate endDate, final boolean verbose)
+            throws IOException, InterruptedException, ExecutionException {
+        final int[] count = new int[1];
+        fastImport(new StreamWriter() {
+            @Override
+            public void write(final OutputStream out) throws IOException,
+                    InterruptedException, ExecutionException {
+                count[0] = stream(endDate, out, verbose);
+            }
+        });
+        return count[0];
+    }
+
+    public int stream(final OLEDate endDate, final OutputStream out,
+            final boolean verbose) throws IOException, InterruptedException,
+            ExecutionException {
+        final Repo repo = getRepo();
+        final RepoProperties props = repo.getRepoProperties();
+        final ItemFilter filter = new ItemFilter(
+                props.getMetaProperty(META_PROP_ITEM_FILTER));
+        final CommitQueue queue = new CommitQueue();
+        final ExecutorService importer = Executors.newSingleThreadExecutor();
+        final Thread main = Thread.currentThread();
+        final Future<Integer> f = importer.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                try {
+                    return submit(queue, out, verbose);
+                } catch (final Throwable ex) {
+                    if (queue.abort()) {
+                        main.interrupt();
+                    }
+
+                    throw ex;
+                }
+            }
+        });
+
+        try {
+            streamHistory(filter, queue, endDate);
+            queue.close();
+            return getResult(f);
+        } catch (final InterruptedException ex) {
+            if (!queue.abort()) {
+                // Aborted by the importer
+                getResult(f);
             }
 
-            cmt.write(repo, s);
-            b.done(1);
+            throw ex;
+        } catch (final Throwable ex) {
+            queue.abort();
+            throw ex;
+        } finally {
+            importer.shutdown();
+        }
+    }
+
+    private int submit(final CommitQueue queue, final OutputStream out,
+            final boolean verbose) throws IOException, InterruptedException,
+            ExecutionException {
+        final Repo repo = getRepo();
+        final long time = System.currentTimeMillis();
+        final String branch = repo.getBranchName();
+        final ExecutorService threadPool = Executors.newSingleThreadExecutor();
+        final PrintStream s = new FastimportStream(out);
+        final AtomicInteger marks = new AtomicInteger();
+        String from = repo.getGit().showRef(branch);
+        // Directory renames are only detected for a new branch
+        final BranchTree tree = (from == null) ? new BranchTree() : null;
+        int count = 0;
+        beginImport(s);
+
+        try {
+            for (List<Commit> commits = queue.take(); !commits.isEmpty(); commits = queue
+                    .take()) {
+                if (!Utils.isHistoryCacheSupported()) {
+                    populateComments(commits);
+                }
+
+                checkout(commits, threadPool, s, marks);
+
+                for (final Commit cmt : commits) {
+                    from = write(cmt, from, marks, tree, branch, s, verbose);
+                    count++;
+                }
+
+                s.flush();
+                out.flush();
+
+                if (_log.isDebugEnabled()) {
+                    _log.debug("Imported " + commits.size()
+                            + " commits. Total: " + count);
+                }
+            }
+        } finally {
+            endImport();
+            threadPool.shutdown();
         }
 
-        out.flush();
         if (verbose) {
             _log.info("");
         }
-        threadPool.shutdown();
+
         threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        b.complete();
 
         if (_log.isDebugEnabled()) {
             _log.debug("Imported in " + (System.currentTimeMillis() - time)
                     + " ms.");
+            logSpoolUsage();
+        }
+
+        return count;
+    }
+
+    private static <T> T getResult(final Future<T> f) throws IOException,
+            InterruptedException, ExecutionException {
+        try {
+            return f.get();
+        } catch (final java.util.concurrent.ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof ExecutionException) {
+                throw (ExecutionException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /**
+     * @return the mark of the commit.
+     */
+    private String write(final Commit cmt, final String from,
+            final AtomicInteger marks, final BranchTree tree,
+            final String branch, final PrintStream s, final boolean verbose)
+            throws IOException, InterruptedException {
+        final Repo repo = getRepo();
+        final CommitId id = cmt.getId();
+        final String committer = repo.toCommitter(id.getUserId());
+
+        if (from != null) {
+            cmt.setFrom(from);
+        }
+
+        cmt.setMark(":" + marks.incrementAndGet());
+        cmt.setBranch(branch);
+        cmt.setCommitter(committer);
+        cmt.setTree(tree);
+
+        if (verbose && _log.isInfoEnabled()) {
+            _log.info(cmt);
+            _log.info("--------------------------------------------------------------------------------");
+        }
+
+        cmt.write(repo, s);
+        return cmt.getMark();
+    }
+
+    private void fastImport(final StreamWriter w) throws IOException,
+            InterruptedException, ExecutionException {
+        final Repo repo = getRepo();
+        final Git git = repo.getGit();
+        final Exec exec;
+
+        if (_blobIndex != null) {
+            // The stream exports the marks with the feature command, which
+            // fast-import only accepts from the trusted input. The one
+            // started by git fetch for the remote helper trusts it as well.
+            exec = git.fastImport(repo.getBranchName(),
+                    "--allow-unsafe-features").exec();
+        } else {
+            exec = git.fastImport(repo.getBranchName()).exec();
+        }
+
+        final Process proc = exec.getProcess();
+        @SuppressWarnings("resource")
+        final OutputStream out = proc.getOutputStream();
+
+        try {
+            w.write(out);
+            out.close();
+
+            if (exec.waitFor() != 0) {
+                throw new ExecutionException(
+                        "git fast-import failed with exit code: "
+                                + proc.exitValue(), proc.exitValue());
+            }
+            if (_blobIndex != null) {
+                _blobIndex.commitImport();
+            }
+        } finally {
+            proc.destroy();
         }
     }
 
     private void checkout(final Collection<Commit> commits,
-            final ExecutorService threadPool) {
+            final ExecutorService threadPool, final PrintStream s,
+            final AtomicInteger marks) {
         final Thread main = Thread.currentThread();
 
         threadPool.submit(new Runnable() {
@@ -239,13 +492,10 @@ public class FastImport {
             public void run() {
                 try {
                     final Repo repo = getRepo();
-                    final CoListener l = new CoListener(repo, commits);
-                    final ItemList items = l.getItemList();
-
-                    if (items.size() > 0) {
-                        Utils.checkout(repo, items, l);
-                        l._pbar.complete();
-                    }
+                    final CoListener l = new CoListener(repo, commits, s,
+                            marks, _contentCache, _blobIndex, _bufferPool);
+                    l.writeCached();
+                    l.checkout();
                 } catch (final Throwable ex) {
                     getRepo().getLogger().error("Checkout failed", ex);
                     main.interrupt();
@@ -254,9 +504,307 @@ public class FastImport {
         });
     }
 
-    private List<Item[]> loadHistory(final ItemFilter filter,
-            final ConcurrentMap<CommitId, Commit> commits)
+    private void logSpoolUsage() throws IOException {
+        final Spool spool = getRepo().getSpool();
+        _log.debug("Spool peak usage: " + Utils.bytesToString(spool.getPeak())
+                + " of " + Utils.bytesToString(spool.getQuota())
+                + ". Waited for the spool: " + spool.getWaitTime() + " ms.");
+    }
+
+    private BlobIndex openBlobIndex(final RepoProperties props) {
+        try {
+            final BlobIndex index = new BlobIndex(props, _log);
+
+            if (_log.isDebugEnabled()) {
+                _log.debug("Blobs in the index: " + index.size());
+            }
+
+            return index;
+        } catch (final IOException ex) {
+            _log.warn("Failed to load the blob index: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Starts recording the blobs of the import. The marks are exported by
+     * fast-import itself, including the one started by git fetch for the
+     * remote helper, so the blob SHAs are resolved on the next import.
+     */
+    private void beginImport(final PrintStream s) throws IOException {
+        if (_blobIndex != null) {
+            _blobIndex.beginImport();
+            final java.io.File marks = BlobIndex.getMarksFile(getRepo()
+                    .getRepoProperties());
+            s.print("feature export-marks=");
+            s.print(marks.getAbsolutePath());
+            s.print('\n');
+        }
+    }
+
+    private void endImport() {
+        if (_blobIndex != null) {
+            _blobIndex.endImport();
+        }
+    }
+
+    /**
+     * @return the time of the oldest revision the history of the file can
+     *         contain. The history of a file shared from another view or of a
+     *         file in a derived view may start before the file was created in
+     *         the view, so the time is unknown.
+     */
+    private static long getEarliestTime(final Item i, final boolean derived) {
+        return (derived || !i.isRootShare()) ? Long.MIN_VALUE : i
+                .getCreatedTime().getLongValue();
+    }
+
+    private void loadHistory(final ItemFilter filter,
+            final ConcurrentMap<CommitId, Commit> commits,
+            final OLEDate endDate) throws InterruptedException, IOException,
+            ExecutionException {
+        try (final HistoryCache cache = openHistoryCache()) {
+            loadHistory(filter, commits, endDate.getDoubleValue(), cache);
+
+            if ((cache != null) && _log.isDebugEnabled()) {
+                _log.debug("Histories loaded from cache: " + cache.getHits());
+            }
+        }
+
+        if (_log.isDebugEnabled()) {
+            final Runtime rt = Runtime.getRuntime();
+            _log.debug("Heap used after loading history: "
+                    + Utils.bytesToString(rt.totalMemory() - rt.freeMemory()));
+        }
+    }
+
+    private void populateTree(final Folder folder) {
+        getRepo().getRateLimiter().acquire(2);
+        folder.populateNow("File", FILE_PROPS, -1);
+        folder.populateNow("Folder", FOLDER_PROPS, -1);
+    }
+
+    private HistoryCache openHistoryCache() throws IOException {
+        if (!Utils.isHistoryCacheSupported()) {
+            return null;
+        }
+
+        final Repo repo = getRepo();
+        final RepoProperties props = repo.getRepoProperties();
+        final java.io.File dir = new java.io.File(props.getGitstDir(),
+                repo.getBranchName());
+        final HistoryCache cache = new HistoryCache(new java.io.File(dir,
+                HISTORY_CACHE));
+
+        if (_log.isDebugEnabled()) {
+            _log.debug("History cache entries: " + cache.size());
+        }
+
+        return cache;
+    }
+
+    /**
+     * Loads the files history in the order of the oldest revision time the
+     * files can have. As soon as a chunk of histories is processed, the
+     * watermark of the queue is moved to this time of the next file, so that
+     * the older commits could be imported while the rest of the history is
+     * being loaded. The files, which history may start before the file
+     * creation, are loaded first and hold the watermark until all of them are
+     * loaded.
+     */
+    private void streamHistory(final ItemFilter filter,
+            final CommitQueue queue, final OLEDate endDate)
+            throws InterruptedException, IOException, ExecutionException {
+        final Repo repo = getRepo();
+        final RepoProperties props = repo.getRepoProperties();
+        final int maxc = Integer.parseInt(props.getProperty(
+                PROP_MAXCONNECTIONS, PROP_DEFAULT_MAXCONNECTIONS));
+        final boolean skipDeleted = !"false".equalsIgnoreCase(System
+                .getenv("GITST_SKIP_DELETED"));
+        final double end = endDate.getDoubleValue();
+        final Folder rootFolder = repo.getRootFolder();
+        final List<Item> files = new ArrayList<>();
+        long time = System.currentTimeMillis();
+
+        _log.info("Loading files tree");
+        populateTree(rootFolder);
+        collectFiles(filter, queue, rootFolder, files, false);
+
+        if (!skipDeleted) {
+            final RecycleBin recycle = repo.getView().getRecycleBin();
+            final Folder recycleRootFolder = repo.getRootFolder(recycle);
+            _log.info("Loading deleted files tree");
+            populateTree(recycleRootFolder);
+            collectFiles(filter, queue, recycleRootFolder, files, true);
+        }
+
+        if (_log.isDebugEnabled()) {
+            _log.debug("Files tree loaded in "
+                    + (System.currentTimeMillis() - time) + " ms.");
+        }
+
+        final boolean derived = !repo.getView().isNonDerived();
+        Collections.sort(files, new Comparator<Item>() {
+            @Override
+            public int compare(final Item i1, final Item i2) {
+                return Long.compare(getEarliestTime(i1, derived),
+                        getEarliestTime(i2, derived));
+            }
+        });
+
+        if (derived && _log.isInfoEnabled()) {
+            _log.info("The view is derived, the commits are imported once the"
+                    + " entire history is loaded");
+        }
+
+        final ForkJoinPool pool = createPool(maxc);
+        final HistoryFetcher fetcher = new HistoryFetcher(repo,
+                new ConcurrencyLimiter(1, maxc));
+        final ProgressBar pb = _log.createProgressBar("Loading files history",
+                files.size());
+
+        if (!_log.isProgressBarSupported()) {
+            _log.info("Loading files history");
+        }
+
+        time = System.currentTimeMillis();
+
+        try (final HistoryCache cache = openHistoryCache()) {
+            final HistoryLoader loader = new HistoryLoader(filter, queue, end,
+                    cache, pool, fetcher, pb);
+
+            for (int off = 0; off < files.size(); off += STREAM_CHUNK_SIZE) {
+                final int next = Math.min(off + STREAM_CHUNK_SIZE,
+                        files.size());
+                loader.load(groupByFolder(files.subList(off, next)));
+
+                if (next < files.size()) {
+                    queue.setWatermark(getEarliestTime(files.get(next),
+                            derived));
+                }
+            }
+
+            if ((cache != null) && _log.isDebugEnabled()) {
+                _log.debug("Histories loaded from cache: " + cache.getHits());
+            }
+
+            loader.checkFailed();
+        } finally {
+            pool.shutdown();
+            fetcher.close();
+        }
+
+        if (_log.isDebugEnabled()) {
+            _log.debug("History requests concurrency: "
+                    + fetcher.getLimiter());
+            _log.debug("History requests: " + fetcher);
+            _log.debug("Server rate limit: " + repo.getRateLimiter());
+        }
+
+        pb.complete();
+
+        if (_log.isDebugEnabled()) {
+            _log.debug("Files history loaded in "
+                    + (System.currentTimeMillis() - time) + " ms.");
+        }
+    }
+
+    /**
+     * Populates the comments of the revisions included into the commits. The
+     * history items created by the internal API already have the comments.
+     */
+    private void populateComments(final Collection<Commit> commits)
             throws InterruptedException {
+        final Set<Item> items = new LinkedHashSet<>();
+        final long time = System.currentTimeMillis();
+
+        for (final Commit cmt : commits) {
+            for (final FileChange c : cmt.getChanges()) {
+                if (c instanceof FileModify) {
+                    items.add(((FileModify) c).getFileData().getFile());
+                } else if (c instanceof FileRename) {
+                    final Item i = ((FileRename) c).getDestItem();
+
+                    if (i instanceof File) {
+                        items.add(i);
+                    }
+                }
+            }
+        }
+
+        if (!items.isEmpty()) {
+            Utils.populate(getRepo(), new ArrayList<>(items), COMMENT_PROPS,
+                    new Logger.DummyProgressBar());
+
+            if (_log.isDebugEnabled()) {
+                _log.debug("Comments of " + items.size()
+                        + " revisions populated in "
+                        + (System.currentTimeMillis() - time) + " ms.");
+            }
+        }
+    }
+
+    /**
+     * Splits the files into the batches of the files of the same folder. The
+     * histories of a batch are requested over one connection, but still one
+     * request per file.
+     */
+    private List<List<Item>> groupByFolder(final List<Item> files) {
+        final Map<Integer, List<Item>> folders = new HashMap<>();
+        final List<List<Item>> batches = new ArrayList<>();
+
+        for (final Item f : files) {
+            final Integer folderId = f.getParentFolder().getID();
+            List<Item> batch = folders.get(folderId);
+
+            if (batch == null) {
+                batch = new ArrayList<>();
+                folders.put(folderId, batch);
+                batches.add(batch);
+            }
+
+            batch.add(f);
+
+            if (batch.size() == _historyBatch) {
+                folders.remove(folderId);
+            }
+        }
+
+        return batches;
+    }
+
+    private void collectFiles(final ItemFilter filter,
+            final ConcurrentMap<CommitId, Commit> commits, final Folder folder,
+            final List<Item> files, final boolean isRecycle) {
+        final Item[] items = folder.getItems("File");
+        final Folder[] folders = folder.getSubFolders();
+
+        if (!isRecycle && (items.length == 0) && (folders.length == 0)) {
+            createEmptyDir(filter, commits, folder, false);
+        }
+
+        Collections.addAll(files, items);
+
+        for (final Folder f : folders) {
+            collectFiles(filter, commits, f, files, isRecycle);
+        }
+
+        if (folder.isDeleted()) {
+            createFiledelete(filter, commits, folder.getDeletedTime(), folder,
+                    false);
+        }
+    }
+
+    /**
+     * Loads and processes the files history by batches. The history items are
+     * released as soon as a batch is processed, only the revisions included
+     * into the commits are retained. The live and the deleted files are loaded
+     * by the same pool.
+     */
+    private void loadHistory(final ItemFilter filter,
+            final ConcurrentMap<CommitId, Commit> commits, final double end,
+            final HistoryCache cache) throws InterruptedException,
+            ExecutionException {
         final Repo repo = getRepo();
         final RepoProperties props = repo.getRepoProperties();
         final int maxc = Integer.parseInt(props.getProperty(
@@ -265,15 +813,11 @@ public class FastImport {
         Folder recycleRootFolder = null;
         final boolean skipDeleted = !"false".equalsIgnoreCase(System
                 .getenv("GITST_SKIP_DELETED"));
-        final Type type = repo.getServer().typeForName("File");
-        final int count;
-        int recycleCount = 0;
+        final List<Item> files = new ArrayList<>();
         long time = System.currentTimeMillis();
 
         _log.info("Loading files tree");
-        rootFolder.populateNow("File", FILE_PROPS, -1);
-        rootFolder.populateNow("Folder", FOLDER_PROPS, -1);
-        count = (int) rootFolder.countItems(type, -1);
+        populateTree(rootFolder);
 
         if (_log.isDebugEnabled()) {
             _log.debug("Files tree loaded in "
@@ -285,9 +829,7 @@ public class FastImport {
             recycleRootFolder = repo.getRootFolder(recycle);
             time = System.currentTimeMillis();
             _log.info("Loading deleted files tree");
-            recycleRootFolder.populateNow("File", FILE_PROPS, -1);
-            recycleRootFolder.populateNow("Folder", FOLDER_PROPS, -1);
-            recycleCount = (int) recycleRootFolder.countItems(type, -1);
+            populateTree(recycleRootFolder);
 
             if (_log.isDebugEnabled()) {
                 _log.debug("Deleted files tree loaded in "
@@ -295,205 +837,126 @@ public class FastImport {
             }
         }
 
-        final List<Item[]> history = new Vector<>(count + recycleCount);
-        final ItemList list = new ItemList();
-        ExecutorService threadPool = createThreadPool(Math.min(maxc,
-                (count * 3) / 1000));
-        ProgressBar pb = _log.createProgressBar("Loading files history", count);
+        _aggregator = new ChangeAggregator(commits);
 
-        if (!_log.isProgressBarSupported()) {
-            _log.info("Loading files history");
-        }
+        try {
+            collectFiles(filter, commits, rootFolder, files, false);
 
-        time = System.currentTimeMillis();
-        loadHistory(filter, commits, rootFolder, threadPool, pb, history, list,
-                false);
-        threadPool.shutdown();
-        threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        pb.complete();
+            if (!skipDeleted) {
+                collectFiles(filter, commits, recycleRootFolder, files, true);
+            }
 
-        if (_log.isDebugEnabled()) {
-            _log.debug("Files history loaded in "
-                    + (System.currentTimeMillis() - time) + " ms.");
-        }
+            final ForkJoinPool pool = createPool(maxc);
+            final HistoryFetcher fetcher = new HistoryFetcher(repo,
+                    new ConcurrencyLimiter(1, maxc));
+            final ProgressBar pb = _log.createProgressBar(
+                    "Loading files history", files.size());
 
-        if (!skipDeleted) {
             if (!_log.isProgressBarSupported()) {
-                _log.info("Loading deleted files history");
+                _log.info("Loading files history");
+            }
+
+            time = System.currentTimeMillis();
+
+            try {
+                final HistoryLoader loader = new HistoryLoader(filter,
+                        commits, end, cache, pool, fetcher, pb);
+                loader.load(groupByFolder(files));
+                loader.checkFailed();
+            } finally {
+                pool.shutdown();
+                fetcher.close();
             }
 
-            threadPool = createThreadPool(Math.min(maxc,
-                    (recycleCount * 6) / 1000));
-            pb = _log.createProgressBar("Loading deleted files history",
-                    recycleCount);
-            time = System.currentTimeMillis();
-            loadHistory(filter, commits, recycleRootFolder, threadPool, pb,
-                    history, list, true);
-            threadPool.shutdown();
-            threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
             pb.complete();
 
             if (_log.isDebugEnabled()) {
-                _log.debug("Deleted files history loaded in "
+                _log.debug("Files history loaded in "
                         + (System.currentTimeMillis() - time) + " ms.");
+                _log.debug("History requests concurrency: "
+                        + fetcher.getLimiter());
+                _log.debug("History requests: " + fetcher);
+                _log.debug("Server rate limit: " + repo.getRateLimiter());
             }
-        }
 
-        if (list.size() > 0) {
             time = System.currentTimeMillis();
-            _log.info("Populating properties");
-            list.populateNow(FILE_PROPS);
+            _aggregator.merge();
 
             if (_log.isDebugEnabled()) {
-                _log.debug("History populated in "
-                        + (System.currentTimeMillis() - time) + " ms.");
+                _log.debug("Changes merged into " + commits.size()
+                        + " commits in " + (System.currentTimeMillis() - time)
+                        + " ms.");
             }
+        } finally {
+            _aggregator = null;
         }
-
-        return history;
     }
 
-    private void loadHistory(final ItemFilter filter,
-            final ConcurrentMap<CommitId, Commit> commits, final Folder folder,
-            final ExecutorService threadPool, final ProgressBar pb,
-            final List<Item[]> history, final ItemList list,
-            final boolean isRecycle) {
+    private void processItemHistory(final ItemFilter filter,
+            final ConcurrentMap<CommitId, Commit> commits, final double end,
+            final Item[] itemHistory, final boolean verbose) {
         final Repo repo = getRepo();
-        final Thread main = Thread.currentThread();
-        final Item[] files = folder.getItems("File");
-        final Folder[] folders = folder.getSubFolders();
+        File prev = null;
+        // The last imported content
+        FileData prevData = null;
+        final boolean deleted = itemHistory[0].isDeleted();
+        final int top = deleted ? 1 : 0;
 
-        if (!isRecycle && (files.length == 0) && (folders.length == 0)) {
-            createEmptyDir(filter, commits, folder, false);
-        }
-
-        for (final Item f : files) {
-            if (main.isInterrupted()) {
-                return;
-            }
-            if (_log.isDebugEnabled()) {
-                _log.debug(repo.getPath(f) + ':' + f.getDotNotation());
-            }
+        for (int i = itemHistory.length - 1; i >= top; i--) {
+            final File h = (File) itemHistory[i];
+            final OLEDate date = h.getModifiedTime();
 
-            threadPool.submit(new Runnable() {
+            if (date.getDoubleValue() >= end) {
+                break;
+            } else if (prev == null) {
+                final FileData data = new FileData(h, repo.getPath(h));
 
-                @Override
-                public void run() {
-                    try {
-                        history.add(Utils.getHistory(repo, f, list));
-                    } catch (final Throwable ex) {
-                        _log.error(ex.getMessage(), ex);
-                        threadPool.shutdown();
-                        main.interrupt();
-                    } finally {
-                        pb.done(1);
-                    }
+                if (createFilemodify(filter, commits, date, data, true,
+                        verbose)) {
+                    prevData = data;
                 }
-            });
-        }
-
-        for (final Folder f : folders) {
-            loadHistory(filter, commits, f, threadPool, pb, history, list,
-                    isRecycle);
-        }
-
-        if (folder.isDeleted()) {
-            createFiledelete(filter, commits, folder.getDeletedTime(), folder,
-                    false);
-        }
-    }
+            } else {
+                final String path = repo.getPath(h);
+                final String prevPath = repo.getPath(prev);
+
+                if (path.equals(prevPath)) {
+                    final FileData source = ((prevData != null) && FileData
+                            .isSameContent(prevData.getFile(), h)) ? prevData
+                            : null;
+                    final FileData data = new FileData(h, path, source);
+
+                    if (createFilemodify(filter, commits, date, data, false,
+                            verbose)) {
+                        prevData = data;
+                    }
+                } else {
+                    final FileRename rename = new FileRename(prev, h,
+                            prevPath, path, prevData);
 
-    private void processHistory(final ItemFilter filter,
-            final ConcurrentMap<CommitId, Commit> commits,
-            final OLEDate endDate, final List<Item[]> history)
-            throws InterruptedException {
-        final Repo repo = getRepo();
-        final Thread main = Thread.currentThread();
-        final boolean verbose = _log.isDebugEnabled();
-        final long time = System.currentTimeMillis();
-        final double end = endDate.getDoubleValue();
-        final ProgressBar pb = _log.createProgressBar("Processing history",
-                history.size());
-        final ExecutorService threadPool = createThreadPool(Runtime
-                .getRuntime().availableProcessors() - 1);
-
-        for (final Item[] itemHistory : history) {
-            threadPool.submit(new Runnable() {
-
-                @Override
-                public void run() {
-                    try {
-                        doRun();
-                    } catch (final Throwable ex) {
-                        _log.error(ex.getMessage(), ex);
-                        threadPool.shutdown();
-                        main.interrupt();
-                    } finally {
-                        pb.done(1);
+                    if (createFilerename(filter, commits, date, rename,
+                            verbose)) {
+                        prevData = rename.getFileModify().getFileData();
                     }
                 }
+            }
 
-                public void doRun() {
-                    File prev = null;
-                    final boolean deleted = itemHistory[0].isDeleted();
-                    final int top = deleted ? 1 : 0;
-
-                    for (int i = itemHistory.length - 1; i >= top; i--) {
-                        final File h = (File) itemHistory[i];
-                        final OLEDate date = h.getModifiedTime();
-
-                        if (date.getDoubleValue() >= end) {
-                            break;
-                        } else if (prev == null) {
-                            final FileData data = new FileData(h, repo
-                                    .getPath(h));
-                            createFilemodify(filter, commits, date, data, true,
-                                    verbose);
-                        } else {
-                            final String path = repo.getPath(h);
-                            final String prevPath = repo.getPath(prev);
-
-                            if (path.equals(prevPath)) {
-                                final FileData data = new FileData(h, path);
-                                createFilemodify(filter, commits, date, data,
-                                        false, verbose);
-                            } else {
-                                final FileRename rename = new FileRename(prev,
-                                        h, prevPath, path);
-                                createFilerename(filter, commits, date, rename,
-                                        verbose);
-                            }
-                        }
-
-                        prev = h;
-                    }
+            prev = h;
+        }
 
-                    if (deleted && isNotRestored(itemHistory[0])) {
-                        final int user = itemHistory[0].getDeletedUserID();
-                        final OLEDate date = itemHistory[0].getDeletedTime();
+        if (deleted && isNotRestored(itemHistory[0])) {
+            final int user = itemHistory[0].getDeletedUserID();
+            final OLEDate date = itemHistory[0].getDeletedTime();
 
-                        if (!filter.apply(user, date.getDoubleValue())) {
-                            final long time = date.getLongValue();
-                            final FileDelete c = new FileDelete(itemHistory[1],
-                                    getRepo().getPath(itemHistory[1]));
-                            final Commit cmt = getCommit(commits, user, time);
-                            cmt.addChange(c);
+            if (!filter.apply(user, date.getDoubleValue())) {
+                final long time = date.getLongValue();
+                final FileDelete c = new FileDelete(itemHistory[1], getRepo()
+                        .getPath(itemHistory[1]));
+                addChange(commits, user, time, c);
 
-                            if (verbose) {
-                                logChange(time, c);
-                            }
-                        }
-                    }
+                if (verbose) {
+                    logChange(time, c);
                 }
-            });
-        }
-
-        threadPool.shutdown();
-        threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-
-        if (_log.isDebugEnabled()) {
-            _log.debug("History processed in "
-                    + (System.currentTimeMillis() - time) + " ms.");
+            }
         }
     }
 
@@ -507,13 +970,14 @@ public class FastImport {
         }
     }
 
-    private static ExecutorService createThreadPool(final int t) {
-        return new ThreadPoolExecutor(0, (t <= 0) ? 1 : t, 60L,
-                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
-                new ThreadPoolExecutor.CallerRunsPolicy());
+    private static ForkJoinPool createPool(final int t) {
+        return new ForkJoinPool((t <= 0) ? 1 : t);
     }
 
-    private void createFilemodify(final ItemFilter filter,
+    /**
+     * @return true if the change has been added to a commit.
+     */
+    private boolean createFilemodify(final ItemFilter filter,
             final ConcurrentMap<CommitId, Commit> commits, final OLEDate date,
             final FileData data, final boolean isNewFile, final boolean verbose) {
         final int user = data.getFile().getModifiedBy();
@@ -521,30 +985,40 @@ public class FastImport {
         if (!filter.apply(user, date.getDoubleValue())) {
             final long time = date.getLongValue();
             final FileModify c = new FileModify(data, isNewFile);
-            final Commit cmt = getCommit(commits, user, time);
-            cmt.addChange(c);
+            addChange(commits, user, time, c);
 
             if (verbose) {
                 logChange(time, c);
             }
+
+            return true;
         }
+
+        return false;
     }
 
-    private void createFilerename(final ItemFilter filter,
+    /**
+     * @return true if the change has been added to a commit.
+     */
+    private boolean createFilerename(final ItemFilter filter,
             final ConcurrentMap<CommitId, Commit> commits, final OLEDate date,
             final FileRename c, final boolean verbose) {
         final int user = c.getDestItem().getModifiedBy();
 
         if (!filter.apply(user, date.getDoubleValue())) {
             final long time = date.getLongValue();
-            final Commit cmt = getCommit(commits, user, time);
-            cmt.addChange(c);
-            checkEmpty(c.getSourceItem().getParentFolder(), cmt, commits);
+            addChange(commits, user, time, c);
+            checkEmpty(c.getSourceItem().getParentFolder(), commits, user,
+                    time);
 
             if (verbose) {
                 logChange(time, c);
             }
+
+            return true;
         }
+
+        return false;
     }
 
     private void createFiledelete(final ItemFilter filter,
@@ -555,9 +1029,8 @@ public class FastImport {
         if (!filter.apply(user, date.getDoubleValue()) && isNotRestored(item)) {
             final long time = date.getLongValue();
             final FileDelete c = new FileDelete(item, getRepo().getPath(item));
-            final Commit cmt = getCommit(commits, user, time);
-            cmt.addChange(c);
-            checkEmpty(item.getParentFolder(), cmt, commits);
+            addChange(commits, user, time, c);
+            checkEmpty(item.getParentFolder(), commits, user, time);
 
             if (verbose) {
                 logChange(time, c);
@@ -574,8 +1047,7 @@ public class FastImport {
         if (!filter.apply(user, date.getDoubleValue())) {
             final long time = date.getLongValue();
             final EmptyDir c = new EmptyDir(folder, getRepo().getPath(folder));
-            final Commit cmt = getCommit(commits, user, time);
-            cmt.addChange(c);
+            addChange(commits, user, time, c);
 
             if (verbose) {
                 logChange(time, c);
@@ -583,14 +1055,23 @@ public class FastImport {
         }
     }
 
-    private void checkEmpty(final Folder folder, final Commit cmt,
-            final ConcurrentMap<CommitId, Commit> commits) {
+    private void checkEmpty(final Folder folder,
+            final ConcurrentMap<CommitId, Commit> commits, final int user,
+            final long time) {
         final Repo repo = getRepo();
 
         if (!folder.isDeleted() && repo.isEmpty(folder)) {
             final String path = getRepo().getPath(folder);
 
             if (repo.getFolder(path) != null) {
+                final ChangeAggregator a = _aggregator;
+
+                if ((a != null) && (a.getCommits() == commits)) {
+                    // The duplicates are discarded on merge
+                    a.addEmptyDir(user, time, new EmptyDir(folder, path));
+                    return;
+                }
+
                 for (final Commit c : commits.values()) {
                     for (final FileChange fc : c.getChanges()) {
                         if ((fc instanceof EmptyDir)
@@ -600,11 +1081,27 @@ public class FastImport {
                     }
                 }
 
-                cmt.addChange(new EmptyDir(folder, path));
+                getCommit(commits, user, time).addChange(
+                        new EmptyDir(folder, path));
             }
         }
     }
 
+    /**
+     * Adds the change to the thread local buffer of the aggregator, if the
+     * changes of the commits are being aggregated, or directly to the commit.
+     */
+    private void addChange(final ConcurrentMap<CommitId, Commit> commits,
+            final int user, final long time, final FileChange c) {
+        final ChangeAggregator a = _aggregator;
+
+        if ((a != null) && (a.getCommits() == commits)) {
+            a.addChange(user, time, c);
+        } else {
+            getCommit(commits, user, time).addChange(c);
+        }
+    }
+
     private static Commit getCommit(
             final ConcurrentMap<CommitId, Commit> commits, final int userId,
             final long time) {
@@ -621,30 +1118,303 @@ public class FastImport {
         }
     }
 
-    private static final class IntermediateListener implements
-            FolderUpdateListener, ItemUpdateListener {
-        private final List<File> _files = new ArrayList<>();
-        private final List<Folder> _folders = new ArrayList<>();
-        private final List<EventWrapper> _events = new ArrayList<>();
+    /**
+     * Loads and processes the files history on a fork/join pool. The batches
+     * are sorted by the expected cost and split recursively, so that the most
+     * expensive batches are started first and the idle threads steal the
+     * remaining ranges. The load does not end with a long tail of a single
+     * large batch. The files, which
+     * history could not be loaded, are retried one by one at the end of the
+     * load and fail the import if they still fail. Any other failure skips
+     * the remaining batches and is rethrown to the caller.
+     */
+    private final class HistoryLoader {
+        private final ItemFilter _filter;
+        private final ConcurrentMap<CommitId, Commit> _commits;
+        private final double _end;
+        private final HistoryCache _cache;
+        private final ForkJoinPool _pool;
+        private final HistoryFetcher _fetcher;
+        private final ProgressBar _pb;
+        private final Queue<Item> _deadLetters = new ConcurrentLinkedQueue<>();
+        private final List<Item> _failed = new ArrayList<>();
+        private final AtomicInteger _limit = new AtomicInteger();
+        private final Thread _main = Thread.currentThread();
+        private final boolean _verbose = _log.isDebugEnabled();
+        private final AtomicReference<Throwable> _failure = new AtomicReference<>();
 
-        public List<EventWrapper> getEvents() {
-            if (!_files.isEmpty()) {
-                final ItemList list = new ItemList();
+        HistoryLoader(final ItemFilter filter,
+                final ConcurrentMap<CommitId, Commit> commits,
+                final double end, final HistoryCache cache,
+                final ForkJoinPool pool, final HistoryFetcher fetcher,
+                final ProgressBar pb) {
+            _filter = filter;
+            _commits = commits;
+            _end = end;
+            _cache = cache;
+            _pool = pool;
+            _fetcher = fetcher;
+            _pb = pb;
+        }
+
+        public void load(final List<List<Item>> batches)
+                throws InterruptedException {
+            final List<Batch> queue = new ArrayList<>(batches.size());
+
+            for (final List<Item> batch : batches) {
+                queue.add(new Batch(batch));
+            }
+
+            Collections.sort(queue);
 
-                for (final Item i : _files) {
-                    list.addItem(i);
+            if (!queue.isEmpty()) {
+                _pool.invoke(new Load(queue, 0, queue.size()));
+            }
+
+            checkFailure();
+
+            if (!_deadLetters.isEmpty()) {
+                // Retry the failed files one by one once the load is over
+                final List<Item> retry = new ArrayList<>(_deadLetters);
+                _deadLetters.clear();
+                _log.info("Retrying to load the history of " + retry.size()
+                        + " files");
+
+                for (final Item i : retry) {
+                    process(Collections.singletonList(i), _failed);
                 }
 
-                list.populateNow(FILE_PROPS);
+                checkFailure();
             }
-            if (!_folders.isEmpty()) {
+        }
+
+        /**
+         * Fails the import if the history of some files could not be loaded,
+         * so that the import is not committed without the files.
+         */
+        public void checkFailed() throws ExecutionException {
+            if (!_failed.isEmpty()) {
+                final Repo repo = getRepo();
+                _log.error("Failed to load the history of " + _failed.size()
+                        + " files:");
+
+                for (final Item i : _failed) {
+                    _log.error("    " + repo.getPath(i));
+                }
+
+                throw new ExecutionException("Failed to load the history of "
+                        + _failed.size()
+                        + " files, the import is not committed", 1);
+            }
+        }
+
+        private void checkFailure() throws InterruptedException {
+            final Throwable ex = _failure.get();
+
+            if (ex instanceof RuntimeException) {
+                throw (RuntimeException) ex;
+            } else if (ex instanceof Error) {
+                throw (Error) ex;
+            } else if (ex != null) {
+                throw new RuntimeException(ex);
+            } else if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        private boolean isAborted() {
+            return (_failure.get() != null) || _main.isInterrupted();
+        }
+
+        private void logLimit() {
+            if (_verbose) {
+                final ConcurrencyLimiter limiter = _fetcher.getLimiter();
+                final int limit = limiter.getLimit();
+
+                if (_limit.getAndSet(limit) != limit) {
+                    _log.debug("History requests concurrency: " + limiter);
+                }
+            }
+        }
+
+        private void fail(final Throwable ex) {
+            if (_failure.compareAndSet(null, ex)) {
+                _log.error(ex.getMessage(), ex);
+            }
+        }
+
+        /**
+         * Expected cost of the history request: the number of revisions not
+         * found in the cache plus a constant per item overhead.
+         */
+        private long getCost(final Item i) {
+            final int rev = i.getRevisionNumber();
+            final int cached = (_cache == null) ? -1 : _cache.getRevision(i
+                    .getItemID());
+
+            return (cached == rev) ? 1 : Utils.getHistoryCost(i, cached);
+        }
+
+        /**
+         * @param failed
+         *            the files, which history could not be loaded, are added
+         *            to this collection.
+         */
+        private void process(final List<Item> batch,
+                final Collection<Item> failed) {
+            if (isAborted()) {
+                return;
+            }
+
+            try {
                 final ItemList list = new ItemList();
+                final List<Item> revisions = new ArrayList<>();
+
+                if (_verbose) {
+                    final Repo repo = getRepo();
+
+                    for (final Item f : batch) {
+                        _log.debug(repo.getPath(f) + ':' + f.getDotNotation());
+                    }
+                }
+
+                final List<Item[]> history = getHistory(batch, revisions,
+                        failed);
+                logLimit();
+
+                if (!revisions.isEmpty()) {
+                    for (final Item i : revisions) {
+                        list.addItem(i);
+                    }
 
-                for (final Item i : _folders) {
-                    list.addItem(i);
+                    getRepo().getRateLimiter().acquire(1);
+                    list.populateNow(FILE_PROPS);
                 }
+                for (final Item[] itemHistory : history) {
+                    processItemHistory(_filter, _commits, _end, itemHistory,
+                            _verbose);
+                }
+            } catch (final Throwable ex) {
+                fail(ex);
+            }
+        }
+
+        /**
+         * Loads the histories of the batch. If the batch fails, the files are
+         * loaded one by one, so that a single failing file does not fail the
+         * whole batch.
+         */
+        private List<Item[]> getHistory(final List<Item> batch,
+                final List<Item> revisions, final Collection<Item> failed)
+                throws InterruptedException {
+            try {
+                return Utils.getHistory(getRepo(), batch, revisions, _cache,
+                        _fetcher);
+            } catch (final RuntimeException ex) {
+                if (isAborted()) {
+                    throw ex;
+                } else if (batch.size() == 1) {
+                    _log.warn("Failed to load the history of "
+                            + getRepo().getPath(batch.get(0)) + ": "
+                            + ex.getMessage());
+                    failed.add(batch.get(0));
+                    return Collections.emptyList();
+                }
+
+                final List<Item[]> history = new ArrayList<>(batch.size());
+
+                for (final Item i : batch) {
+                    history.addAll(getHistory(Collections.singletonList(i),
+                            revisions, failed));
+                }
+
+                return history;
+            }
+        }
+
+        private final class Batch implements Comparable<Batch> {
+            final List<Item> _items;
+            final long _cost;
+
+            Batch(final List<Item> items) {
+                long cost = 0;
+
+                for (final Item i : items) {
+                    cost += getCost(i);
+                }
+
+                _items = items;
+                _cost = cost;
+            }
+
+            @Override
+            public int compareTo(final Batch b) {
+                // Descending
+                return Long.compare(b._cost, _cost);
+            }
+        }
+
+        /**
+         * Loads a range of the batches sorted by cost. The range is split in
+         * halves down to a single batch: the current thread proceeds with the
+         * more expensive half and the other one is left to be stolen by an
+         * idle thread, which takes the largest range not started yet.
+         */
+        private final class Load extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final List<Batch> _batches;
+            private final int _from;
+            private final int _to;
+
+            Load(final List<Batch> batches, final int from, final int to) {
+                _batches = batches;
+                _from = from;
+                _to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (isAborted()) {
+                    return;
+                } else if ((_to - _from) > 1) {
+                    final int mid = (_from + _to) >>> 1;
+                    invokeAll(new Load(_batches, _from, mid), new Load(
+                            _batches, mid, _to));
+                    return;
+                }
+
+                final List<Item> batch = _batches.get(_from)._items;
+
+                try {
+                    process(batch, _deadLetters);
+                } finally {
+                    _pb.done(batch.size());
+                }
+            }
+        }
+    }
+
+    private static final class IntermediateListener implements
+            FolderUpdateListener, ItemUpdateListener {
+        private final List<File> _files = new ArrayList<>();
+        private final List<Folder> _folders = new ArrayList<>();
+        private final List<EventWrapper> _events = new ArrayList<>();
+
+        public List<EventWrapper> getEvents(final Repo repo)
+                throws InterruptedException {
+            final Logger log = repo.getLogger();
 
-                list.populateNow(FOLDER_PROPS);
+            if (!_files.isEmpty()) {
+                final ProgressBar pb = log.createProgressBar(
+                        "Populating files properties", _files.size());
+                Utils.populate(repo, _files, FILE_PROPS, pb);
+                pb.complete();
+            }
+            if (!_folders.isEmpty()) {
+                final ProgressBar pb = log.createProgressBar(
+                        "Populating folders properties", _folders.size());
+                Utils.populate(repo, _folders, FOLDER_PROPS, pb);
+                pb.complete();
             }
 
             return _events;
@@ -904,19 +1674,44 @@ public class FastImport {
         }
     }
 
-    private static final class CoListener implements CheckoutListener {
+    private static final class CoListener implements CheckoutListener,
+            Utils.ContentHandler {
         private final Repo _repo;
         private final Map<RemoteFile, List<FileData>> _files;
         private final ItemList _itemList;
         private final AtomicLong _totalBytes = new AtomicLong();
-        private final String _avgSize;
-        final ProgressBar _pbar;
-
-        public CoListener(final Repo repo, final Collection<Commit> commits) {
+        private final Map<CheckoutProgress, Long> _progress = new ConcurrentHashMap<>();
+        private final PrintStream _stream;
+        private final AtomicInteger _marks;
+        private final ContentCache _cache;
+        private final BlobIndex _blobIndex;
+        private final Spool _spool;
+        private final BufferPool _bufferPool;
+        private final List<File> _smallFiles;
+        private final List<RemoteFile> _cached;
+        private long _size;
+        private String _avgSize;
+        ProgressBar _pbar;
+
+        public CoListener(final Repo repo, final Collection<Commit> commits,
+                final PrintStream stream, final AtomicInteger marks,
+                final ContentCache cache, final BlobIndex blobIndex,
+                final BufferPool bufferPool) throws InterruptedException,
+                IOException {
             _repo = repo;
+            _stream = stream;
+            _marks = marks;
+            _cache = cache;
+            _blobIndex = blobIndex;
+            _spool = repo.getSpool();
+            _bufferPool = bufferPool;
+            _smallFiles = new ArrayList<>();
+            _cached = new ArrayList<>();
             _files = new HashMap<>();
             _itemList = new ItemList();
             final Logger log = repo.getLogger();
+            final Map<String, RemoteFile> byContent = new HashMap<>();
+            int shared = 0;
             long size = 0;
 
             for (final Commit cmt : commits) {
@@ -937,48 +1732,196 @@ public class FastImport {
                         continue;
                     }
 
+                    if (d.getSource() != null) {
+                        // Same content as the source revision
+                        continue;
+                    }
+
                     final File f = d.getFile();
-                    final RemoteFile id = new RemoteFile(f);
-                    final List<FileData> old = _files.put(id,
-                            Collections.singletonList(d));
-                    size += f.getSizeEx();
-
-                    if (old != null) {
-                        final List<FileData> newList = new ArrayList<>(
-                                old.size() + 1);
-                        newList.addAll(old);
-                        newList.add(d);
-                        _files.put(id, newList);
-
-                        if (log.isWarnEnabled()) {
-                            log.warn("Warning! File duplicated in several commits: "
-                                    + d.getPath());
+                    final String contentId = Utils.getContentId(f);
+                    RemoteFile id = new RemoteFile(f);
+
+                    if (contentId != null) {
+                        // The revisions with the same content are checked
+                        // out once and share the blob
+                        final RemoteFile first = byContent.get(contentId);
+
+                        if (first == null) {
+                            byContent.put(contentId, id);
+                        } else {
+                            id = first;
                         }
                     }
 
-                    _itemList.addItem(d.getFile());
+                    List<FileData> l = _files.get(id);
+
+                    if (l == null) {
+                        l = new ArrayList<>(1);
+                        _files.put(id, l);
+                        size += f.getSizeEx();
+                    } else {
+                        shared++;
+                    }
+
+                    l.add(d);
+                }
+            }
+
+            if ((shared != 0) && log.isDebugEnabled()) {
+                log.debug("Revisions sharing the content: " + shared);
+            }
+
+            final Map<String, String> indexed = findIndexed();
+
+            for (final Map.Entry<RemoteFile, List<FileData>> e : _files
+                    .entrySet()) {
+                final File f = e.getKey().get();
+                final String sha = indexed.get(Utils.getContentId(f));
+
+                if (sha != null) {
+                    // Already imported to git
+                    for (final FileData d : e.getValue()) {
+                        d.setMark(sha);
+                    }
+
+                    size -= f.getSizeEx();
+                    continue;
+                }
+                if ((_cache != null) && _cache.contains(f)) {
+                    _cached.add(e.getKey());
+                    size -= f.getSizeEx();
+                    continue;
+                }
+
+                addItem(f);
+            }
+
+            if (!indexed.isEmpty() && log.isDebugEnabled()) {
+                log.debug("Contents found in the blob index: "
+                        + indexed.size());
+            }
+
+            _size = size;
+        }
+
+        /**
+         * @return content id to blob SHA map of the revisions already
+         *         imported to git.
+         */
+        private Map<String, String> findIndexed()
+                throws InterruptedException, IOException {
+            final Map<String, String> indexed = new HashMap<>();
+
+            if (_blobIndex != null) {
+                for (final RemoteFile id : _files.keySet()) {
+                    final String contentId = Utils.getContentId(id.get());
+                    final String sha = _blobIndex.get(contentId);
+
+                    if (sha != null) {
+                        indexed.put(contentId, sha);
+                    }
+                }
+
+                _blobIndex.validate(_repo.getGit(), indexed);
+            }
+
+            return indexed;
+        }
+
+        /**
+         * Writes the revisions found in the content cache. The revisions
+         * evicted from the cache are added to the checkout list. Must be
+         * called before the checkout.
+         */
+        public void writeCached() throws InterruptedException {
+            int hits = 0;
+
+            for (final RemoteFile id : _cached) {
+                final File f = id.get();
+                final java.io.File tmp = _spool.reserve(f, f.getSizeEx());
+
+                if (_cache.get(f, tmp)) {
+                    writeBlob(tmp, _files.get(id), true);
+                    hits++;
+                } else {
+                    _spool.release(tmp);
+                    addItem(f);
+                    _size += f.getSizeEx();
                 }
             }
 
-            _avgSize = Utils.bytesToString(size);
-            _pbar = repo.getLogger().createProgressBar(this, _itemList.size());
+            final Logger log = _repo.getLogger();
+
+            if ((hits != 0) && log.isDebugEnabled()) {
+                log.debug("Revisions found in the content cache: " + hits);
+            }
+
+            _avgSize = Utils.bytesToString(_size);
+            _pbar = log.createProgressBar(this,
+                    _itemList.size() + _smallFiles.size());
+        }
+
+        /**
+         * Checks out the small revisions to memory and the others to the
+         * spool.
+         */
+        public void checkout() throws InterruptedException {
+            if (!_smallFiles.isEmpty()) {
+                Utils.checkout(_repo, _smallFiles, _bufferPool, this);
+            }
+            if (_itemList.size() > 0) {
+                Utils.checkout(_repo, _itemList, this);
+            }
+
+            _pbar.complete();
+        }
+
+        private void addItem(final File f) {
+            if ((_bufferPool != null)
+                    && (f.getSizeEx() < _bufferPool.getBufferSize())) {
+                _smallFiles.add(f);
+            } else {
+                _itemList.addItem(f);
+            }
         }
 
-        public ItemList getItemList() {
-            return _itemList;
+        @Override
+        public void handle(final File f, final BufferPool.Buffer content,
+                final boolean successful) {
+            final List<FileData> data = _files.get(new RemoteFile(f));
+            final byte[] buf = content.getBuffer();
+            final int len = content.size();
+            _pbar.done(1);
+
+            if (successful && (_cache != null)) {
+                _cache.put(f, buf, len);
+            }
+
+            try {
+                final String mark = ":" + _marks.incrementAndGet();
+
+                synchronized (_stream) {
+                    FileData.writeBlob(mark, buf, len, _stream);
+                }
+
+                setMark(mark, data, successful ? len : -1);
+            } catch (final IOException ex) {
+                for (final FileData d : data) {
+                    d.setError(ex);
+                }
+            }
         }
 
         @Override
         public void onStartFile(final CheckoutEvent e) {
             final File f = e.getCurrentFile();
-            final RemoteFile id = new RemoteFile(f);
-            final String path = _files.get(id).get(0).getPath();
 
             try {
-                e.setCurrentWorkingFile(_repo.createTempFile(path));
-            } catch (final IOException ex) {
-                throw new RuntimeException(
-                        "Failed to create temporary file for " + path, ex);
+                // Blocks until the written revisions free the spool
+                e.setCurrentWorkingFile(_spool.reserve(f, f.getSizeEx()));
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Checkout interrupted", ex);
             }
         }
 
@@ -991,60 +1934,93 @@ public class FastImport {
             if (e.isFinished()) {
                 final File f = e.getCurrentFile();
                 final RemoteFile id = new RemoteFile(f);
-                java.io.File wf = e.getCurrentWorkingFile();
+                final java.io.File wf = e.getCurrentWorkingFile();
                 final List<FileData> data = _files.get(id);
                 _pbar.done(1);
 
                 if (!e.isSuccessful()) {
                     _repo.getLogger().error(
                             "Failed to checkout file: " + _repo.getPath(f));
+                } else if (_cache != null) {
+                    _cache.put(f, wf);
                 }
 
-                if (data.size() > 1) {
-                    for (final Iterator<FileData> it = data.iterator(); it
-                            .hasNext();) {
-                        final FileData d = it.next();
-
-                        if (it.hasNext()) {
-                            try {
-                                final java.io.File newFile = _repo
-                                        .createTempFile(d.getPath());
-                                Utils.copyFile(wf, newFile);
-                                d.setCheckout(wf);
-                                wf = newFile;
-                            } catch (final IOException ex) {
-                                throw new RuntimeException(ex);
-                            }
-                        } else {
-                            d.setCheckout(wf);
-                        }
-                    }
-                } else {
-                    data.get(0).setCheckout(wf);
+                writeBlob(wf, data, e.isSuccessful());
+            }
+        }
+
+        /**
+         * @param successful
+         *            false if the checkout failed and the content is not
+         *            added to the blob index.
+         */
+        private void writeBlob(final java.io.File wf,
+                final List<FileData> data, final boolean successful) {
+            // Duplicates share the same blob
+            try {
+                final String mark = ":" + _marks.incrementAndGet();
+
+                synchronized (_stream) {
+                    FileData.writeBlob(mark, wf, _stream);
+                }
+
+                setMark(mark, data, successful ? wf.length() : -1);
+            } catch (final IOException ex) {
+                for (final FileData d : data) {
+                    d.setError(ex);
                 }
+            } finally {
+                _spool.release(wf);
+            }
+        }
+
+        /**
+         * @param size
+         *            the size of the blob or -1 if the blob should not be
+         *            added to the blob index.
+         */
+        private void setMark(final String mark, final List<FileData> data,
+                final long size) {
+            if ((_blobIndex != null) && (size >= 0)) {
+                _blobIndex.addBlob(mark,
+                        Utils.getContentId(data.get(0).getFile()), size);
+            }
+            for (final FileData d : data) {
+                d.setMark(mark);
             }
         }
 
         @Override
         public String toString() {
-            return Utils.isApi12() ? "Checking out" : "Checking out ("
-                    + Utils.bytesToString(_totalBytes.get()) + " / " + _avgSize
-                    + ')';
+            return Utils.isApi12() ? "Checking out (spool: " + _spool + ')'
+                    : "Checking out (" + Utils.bytesToString(_totalBytes.get())
+                            + " / " + _avgSize + ", spool: " + _spool + ')';
         }
 
         private void handleProgress(final CheckoutProgress progress) {
-            final long p = progress.getTotalBytesCheckedOut();
+            // Each checkout manager reports its own progress
+            long total = 0;
+            _progress.put(progress, progress.getTotalBytesCheckedOut());
+
+            for (final Long p : _progress.values()) {
+                total += p;
+            }
 
             for (;;) {
-                final long total = _totalBytes.get();
+                final long current = _totalBytes.get();
 
-                if (total >= p) {
+                if (current >= total) {
                     return;
-                } else if (_totalBytes.compareAndSet(total, p)) {
+                } else if (_totalBytes.compareAndSet(current, total)) {
                     _pbar.update();
                     return;
                 }
             }
         }
     }
+
+    private static interface StreamWriter {
+        void write(OutputStream out) throws IOException, InterruptedException,
+                ExecutionException;
+    }
 }
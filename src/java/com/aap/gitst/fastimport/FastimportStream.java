@@ -0,0 +1,105 @@
+package com.aap.gitst.fastimport;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Buffered fast-import stream which transfers the files content directly to
+ * the underlying channel, bypassing the stream buffers. The content is
+ * transferred without copying only if the underlying stream is a
+ * FileOutputStream, like the standard output of the remote helper. Otherwise
+ * it's copied through a channel wrapping the stream.
+ *
+ * @author Andrey Pavlenko
+ */
+public class FastimportStream extends PrintStream {
+    private final WritableByteChannel _channel;
+    private final ByteBuffer _header = ByteBuffer.allocateDirect(64);
+
+    public FastimportStream(final OutputStream out) {
+        super(new BufferedOutputStream(out, 65536));
+        _channel = getChannel(out);
+    }
+
+    /**
+     * Writes the data command with the file content.
+     */
+    public static void writeData(final PrintStream s, final java.io.File file)
+            throws IOException {
+        if (s instanceof FastimportStream) {
+            ((FastimportStream) s).writeData(file);
+        } else {
+            s.print("data ");
+            s.print(file.length());
+            s.print('\n');
+
+            try (InputStream in = new FileInputStream(file)) {
+                final byte[] buffer = new byte[8192];
+                for (int i = in.read(buffer); i != -1; i = in.read(buffer)) {
+                    s.write(buffer, 0, i);
+                }
+            }
+
+            s.print('\n');
+        }
+    }
+
+    /**
+     * Writes the data command with the content of the buffer.
+     */
+    public static void writeData(final PrintStream s, final byte[] buf,
+            final int len) throws IOException {
+        s.print("data ");
+        s.print(len);
+        s.print('\n');
+        s.write(buf, 0, len);
+        s.print('\n');
+
+        if (s.checkError()) {
+            throw new IOException("Failed to write to the stream");
+        }
+    }
+
+    public synchronized void writeData(final java.io.File file)
+            throws IOException {
+        try (FileInputStream in = new FileInputStream(file);
+                FileChannel fc = in.getChannel()) {
+            final long size = fc.size();
+            flush();
+
+            if (checkError()) {
+                throw new IOException("Failed to write to the stream");
+            }
+
+            _header.clear();
+            _header.put(("data " + size + '\n').getBytes("US-ASCII"));
+            _header.flip();
+
+            while (_header.hasRemaining()) {
+                _channel.write(_header);
+            }
+            for (long pos = 0; pos < size;) {
+                pos += fc.transferTo(pos, size - pos, _channel);
+            }
+        }
+
+        print('\n');
+    }
+
+    private static WritableByteChannel getChannel(final OutputStream out) {
+        if (out instanceof FileOutputStream) {
+            return ((FileOutputStream) out).getChannel();
+        } else {
+            return Channels.newChannel(out);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.aap.gitst.fastimport;
 
+import java.io.IOException;
+
 /**
  * @author Andrey Pavlenko
  */
@@ -10,6 +12,13 @@ public abstract class FileChange implements FastimportCommand,
 
     public abstract int getPriority();
 
+    /**
+     * Waits until the data referenced by this change is written to the
+     * stream.
+     */
+    public void waitForData() throws InterruptedException, IOException {
+    }
+
     @Override
     public int compareTo(final FileChange c) {
         final int p1 = getPriority();
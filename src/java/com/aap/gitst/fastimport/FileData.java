@@ -1,24 +1,36 @@
 package com.aap.gitst.fastimport;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
 
 import com.aap.gitst.Repo;
 import com.starbase.starteam.File;
 
 /**
+ * Content of a file revision. The content is written to the fast-import stream
+ * as a blob as soon as the revision is checked out and is referenced by the
+ * blob mark afterwards. If the content is the same as the content of the
+ * source revision, the source blob is referenced and the revision is not
+ * checked out.
+ *
  * @author Andrey Pavlenko
  */
 public class FileData implements FastimportCommand {
     private final File _file;
     private final String _path;
-    private java.io.File _checkout;
+    private final FileData _source;
+    private String _mark;
+    private IOException _error;
 
     public FileData(final File file, final String path) {
+        this(file, path, null);
+    }
+
+    public FileData(final File file, final String path, final FileData source) {
         _file = file;
         _path = path;
+        _source = source;
     }
 
     public File getFile() {
@@ -29,47 +41,81 @@ public class FileData implements FastimportCommand {
         return _path;
     }
 
-    public synchronized java.io.File getCheckout() {
-        return _checkout;
+    /**
+     * @return the data with the same content or null.
+     */
+    public FileData getSource() {
+        return _source;
+    }
+
+    public synchronized String getMark() {
+        return (_source != null) ? _source.getMark() : _mark;
     }
 
-    public synchronized java.io.File waitForCheckout()
-            throws InterruptedException {
-        while (_checkout == null) {
+    public String waitForMark() throws InterruptedException, IOException {
+        return (_source != null) ? _source.waitForMark() : waitForOwnMark();
+    }
+
+    private synchronized String waitForOwnMark() throws InterruptedException,
+            IOException {
+        while ((_mark == null) && (_error == null)) {
             wait();
         }
-        return _checkout;
+        if (_error != null) {
+            throw _error;
+        }
+        return _mark;
     }
 
-    public synchronized void setCheckout(final java.io.File checkout) {
-        if (checkout == null) {
+    public synchronized void setMark(final String mark) {
+        if (mark == null) {
             throw new NullPointerException();
         }
-        _checkout = checkout;
+        _mark = mark;
+        notifyAll();
+    }
+
+    public synchronized void setError(final IOException error) {
+        _error = error;
         notifyAll();
     }
 
     @Override
     public void write(final Repo repo, final PrintStream s) throws IOException,
             InterruptedException {
-        s.print("data ");
-        final java.io.File checkout = waitForCheckout();
-        writeFile(checkout, s);
-        s.print('\n');
+        s.print(waitForMark());
+    }
+
+    public static boolean isSameContent(final File f1, final File f2) {
+        final byte[] md5 = f1.getMD5();
+        return (md5 != null) && (md5.length > 0)
+                && Arrays.equals(md5, f2.getMD5());
     }
 
-    private static void writeFile(final java.io.File file, final PrintStream s)
-            throws IOException {
-        s.print(file.length());
+    /**
+     * Writes the blob command and deletes the file.
+     */
+    public static void writeBlob(final String mark, final java.io.File file,
+            final PrintStream s) throws IOException {
+        s.print("blob\nmark ");
+        s.print(mark);
         s.print('\n');
 
-        try (InputStream in = new FileInputStream(file)) {
-            final byte[] buffer = new byte[8192];
-            for (int i = in.read(buffer); i != -1; i = in.read(buffer)) {
-                s.write(buffer, 0, i);
-            }
+        try {
+            FastimportStream.writeData(s, file);
         } finally {
             file.delete();
         }
     }
+
+    /**
+     * Writes the blob command with the content of the buffer.
+     */
+    public static void writeBlob(final String mark, final byte[] buf,
+            final int len, final PrintStream s) throws IOException {
+        s.print("blob\nmark ");
+        s.print(mark);
+        s.print('\n');
+        FastimportStream.writeData(s, buf, len);
+    }
 }
@@ -12,12 +12,10 @@ import com.starbase.starteam.File;
 public class FileModify extends FileChange {
     private final FileData _fileData;
     private final boolean _isNewFile;
-    private final String _comment;
 
     public FileModify(final FileData fileData, final boolean isNewFile) {
         _fileData = fileData;
         _isNewFile = isNewFile;
-        _comment = fileData.getFile().getComment();
     }
 
     public FileData getFileData() {
@@ -30,7 +28,8 @@ public class FileModify extends FileChange {
 
     @Override
     public String getComment() {
-        return _comment;
+        // Populated just before the commit is written
+        return getFileData().getFile().getComment();
     }
 
     public String getPath() {
@@ -43,14 +42,20 @@ public class FileModify extends FileChange {
         final FileData data = getFileData();
 
         if (isExecutable(data.getFile())) {
-            s.print("M 100755 inline ");
+            s.print("M 100755 ");
         } else {
-            s.print("M 100644 inline ");
+            s.print("M 100644 ");
         }
 
+        data.write(repo, s);
+        s.print(' ');
         s.print(getPath());
         s.print('\n');
-        data.write(repo, s);
+    }
+
+    @Override
+    public void waitForData() throws InterruptedException, IOException {
+        getFileData().waitForMark();
     }
 
     @Override
@@ -64,7 +69,7 @@ public class FileModify extends FileChange {
                 + getFileData().getFile().getDotNotation();
     }
 
-    private static boolean isExecutable(final File f) {
+    static boolean isExecutable(final File f) {
         final Object prop = f.get(f.getPropertyNames().FILE_EXECUTABLE);
         return (prop instanceof Number) && (((Number) prop).intValue() == 1);
     }
@@ -16,19 +16,47 @@ public class FileRename extends FileChange {
     private final FileModify _fileModify;
     private final String _sourcePath;
     private final String _destPath;
-    private final String _comment;
 
+    /**
+     * If the source file is not modified, the file is moved without checkout.
+     */
     public FileRename(final Item sourceItem, final Item destItem,
             final String sourcePath, final String destPath) {
+        this(sourceItem, destItem, sourcePath, destPath, null, true);
+    }
+
+    /**
+     * If the content is not changed, the source data is reused.
+     *
+     * @param source the last imported data of the file or null.
+     */
+    public FileRename(final Item sourceItem, final Item destItem,
+            final String sourcePath, final String destPath,
+            final FileData source) {
+        this(sourceItem, destItem, sourcePath, destPath, source, false);
+    }
+
+    private FileRename(final Item sourceItem, final Item destItem,
+            final String sourcePath, final String destPath,
+            final FileData source, final boolean allowMove) {
         _sourceItem = sourceItem;
         _destItem = destItem;
         _sourcePath = sourcePath;
         _destPath = destPath;
-        _comment = destItem.getComment();
 
         if (destItem instanceof File) {
-            _fileModify = new FileModify(
-                    new FileData((File) destItem, destPath), true);
+            final File dest = (File) destItem;
+
+            if (allowMove && isMove(sourceItem, dest)) {
+                _fileModify = null;
+            } else if ((source != null)
+                    && FileData.isSameContent(source.getFile(), dest)) {
+                _fileModify = new FileModify(new FileData(dest, destPath,
+                        source), true);
+            } else {
+                _fileModify = new FileModify(new FileData(dest, destPath),
+                        true);
+            }
         } else {
             _fileModify = null;
         }
@@ -56,7 +84,8 @@ public class FileRename extends FileChange {
 
     @Override
     public String getComment() {
-        return _comment;
+        // Populated just before the commit is written
+        return getDestItem().getComment();
     }
 
     @Override
@@ -77,7 +106,14 @@ public class FileRename extends FileChange {
 
             mod.write(repo, s);
         } else {
-            s.print("R ");
+            // Folder or unmodified file
+            if ((getDestItem() instanceof File)
+                    && (repo.getFile(getSourcePath()) != null)) {
+                s.print("C ");
+            } else {
+                s.print("R ");
+            }
+
             s.print(Repo.quotePath(getSourcePath()));
             s.print(' ');
             s.print(Repo.quotePath(getDestPath()));
@@ -85,6 +121,25 @@ public class FileRename extends FileChange {
         }
     }
 
+    @Override
+    public void waitForData() throws InterruptedException, IOException {
+        final FileModify mod = getFileModify();
+
+        if (mod != null) {
+            mod.waitForData();
+        }
+    }
+
+    private static boolean isMove(final Item sourceItem, final File dest) {
+        if (sourceItem instanceof File) {
+            final File src = (File) sourceItem;
+            return FileData.isSameContent(src, dest)
+                    && (FileModify.isExecutable(src) == FileModify
+                            .isExecutable(dest));
+        }
+        return false;
+    }
+
     @Override
     public String toString() {
         return "R " + getSourcePath() + ':' + getSourceItem().getDotNotation()
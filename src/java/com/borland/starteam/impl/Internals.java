@@ -2,7 +2,7 @@ package com.borland.starteam.impl;
 
 import java.io.IOException;
 
-import com.aap.gitst.Repo;
+import com.aap.gitst.HistoryCache;
 import com.borland.starteam.impl._private_.vts.comm.Command;
 import com.borland.starteam.impl._private_.vts.comm.CommandMacro;
 import com.borland.starteam.impl._private_.vts.comm.CommandRoute;
@@ -16,34 +16,99 @@ import com.borland.starteam.impl.util.GUID;
  */
 public class Internals {
 
-    public static com.starbase.starteam.Item[] getHistory(final Repo repo,
+    public static com.starbase.starteam.Item[] getHistory(
+            final com.starbase.starteam.Server connection,
             final com.starbase.starteam.Item i) {
-        final com.starbase.starteam.Server connection = repo
-                .getIdleConnection();
+        return getHistorySequentially(connection,
+                new com.starbase.starteam.Item[] { i }, new double[1])[0];
+    }
 
-        try {
-            final com.borland.starteam.impl.Server server = connection.unwrap();
+    /**
+     * Loads the histories of the items sending the commands one after another
+     * over the same connection. Each item costs a round trip, the commands
+     * are not combined into one request.
+     *
+     * @param connection
+     *            the connection to send the commands over.
+     * @param since
+     *            for each item, the time of the oldest revision to be
+     *            returned or 0 for the entire history.
+     */
+    public static com.starbase.starteam.Item[][] getHistorySequentially(
+            final com.starbase.starteam.Server connection,
+            final com.starbase.starteam.Item[] items, final double[] since) {
+        final com.borland.starteam.impl.Server server = connection.unwrap();
+        final Connection c = server.useConnection();
+        final GUID session = server.getSession().getID();
+        final com.starbase.starteam.Item[][] history = new com.starbase.starteam.Item[items.length][];
+
+        for (int n = 0; n < items.length; n++) {
+            final com.starbase.starteam.Item i = items[n];
             final com.borland.starteam.impl.Item item = (com.borland.starteam.impl.Item) i
                     .unwrap();
-            final Connection c = server.useConnection();
-            final CmdGetHistory cmd = new CmdGetHistory(item);
-            cmd.exec(c, server.getSession().getID(),
-                    server.getViewSession(item.getView()).getID(),
-                    server.getClassID(i.getType().getName()));
-            return cmd.getHistory();
-        } finally {
-            repo.releaseConnection(connection);
+            final CmdGetHistory cmd = new CmdGetHistory(item, since[n]);
+            cmd.exec(c, session, server.getViewSession(item.getView())
+                    .getID(), server.getClassID(i.getType().getName()));
+            history[n] = cmd.getHistory();
+        }
+
+        return history;
+    }
+
+    public static com.starbase.starteam.Item[] createHistory(
+            final com.starbase.starteam.Item i,
+            final HistoryCache.Revision[] revisions) {
+        final com.borland.starteam.impl.Item item = (com.borland.starteam.impl.Item) i
+                .unwrap();
+        final com.starbase.starteam.Item[] history = new com.starbase.starteam.Item[revisions.length];
+
+        for (int n = 0; n < revisions.length; n++) {
+            final HistoryCache.Revision r = revisions[n];
+            history[n] = newHistoryItem(item, r.getId(), r.getRevision(),
+                    r.getPathRevision(), r.getViewId(), r.getTime(),
+                    r.getUserId(), r.getDotNotation(), r.getComment());
         }
+
+        return history;
+    }
+
+    private static com.starbase.starteam.Item newHistoryItem(
+            final com.borland.starteam.impl.Item item, final int id,
+            final int revision, final int pathRevision, final int viewId,
+            final double time, final int userId, final String dotNotation,
+            final String comment) {
+        final com.borland.starteam.impl.Server server = item.getServer();
+        final com.borland.starteam.impl.Type type = item.getType();
+        final DateTime t = new DateTime(time);
+        final com.borland.starteam.impl.Item h = server.newItem(type,
+                item.getView(), false, true);
+
+        h.setSnapshotTime(t);
+        h.setParentFolder(item.getParentFolder());
+        h.setVMID(item.getID());
+        h.initializeReplicaValue("RevisionNumber", new Integer(revision));
+        h.initializeReplicaValue("ID", new Integer(id));
+        h.initializeReplicaValue("ModifiedTime", t);
+        h.initializeReplicaValue("DotNotation", dotNotation);
+        h.initializeReplicaValue("Comment", comment);
+        h.initializeReplicaValue("ModifiedUserID", new Integer(userId));
+        h.initializeReplicaValue("PathRevision", new Integer(pathRevision));
+        h.initializeReplicaValue("ViewID", new Integer(viewId));
+
+        return com.starbase.starteam.Item.wrap(h);
     }
 
     private static class CmdGetHistory extends CommandMacro {
         private static final CommandRoute _route = new CommandRoute(
                 -2147483648, 524288, 2010, "PROJ_CMD_GET_ITEMS_HISTORY");
         private final com.borland.starteam.impl.Item _item;
+        private final double _since;
         private com.starbase.starteam.Item[] _history;
 
-        public CmdGetHistory(final com.borland.starteam.impl.Item item) {
+        public CmdGetHistory(final com.borland.starteam.impl.Item item,
+                final double since) {
             _item = item;
+            _since = since;
         }
 
         public com.starbase.starteam.Item[] getHistory() {
@@ -81,7 +146,7 @@ public class Internals {
         @Override
         protected void push(final Command c) throws IOException {
             c.writeInt(_item.getID());
-            c.writeTime(0.0D);
+            c.writeTime(_since);
 
             if ((c.supports("1.38"))) {
                 c.writeBoolean(true);
@@ -99,28 +164,10 @@ public class Internals {
         }
 
         private com.starbase.starteam.Item wrap(final ItemRevision r) {
-            final com.borland.starteam.impl.Server server = _item.getServer();
-            final com.borland.starteam.impl.Type type = _item.getType();
-            final DateTime time = new DateTime(r.m_time);
-            final com.borland.starteam.impl.Item h = server.newItem(type,
-                    _item.getView(), false, true);
-
-            h.setSnapshotTime(time);
-            h.setParentFolder(_item.getParentFolder());
-            h.setVMID(_item.getID());
-            h.initializeReplicaValue("RevisionNumber", new Integer(
-                    r.m_revisionID.getRevision()));
-            h.initializeReplicaValue("ID",
-                    new Integer(r.m_revisionID.getObjectID()));
-            h.initializeReplicaValue("ModifiedTime", time);
-            h.initializeReplicaValue("DotNotation", r.m_dotNotation);
-            h.initializeReplicaValue("Comment", r.m_comment);
-            h.initializeReplicaValue("ModifiedUserID", new Integer(r.m_userID));
-            h.initializeReplicaValue("PathRevision", new Integer(
-                    r.m_pathRevision - r.m_revisionID.getRevision() - 1));
-            h.initializeReplicaValue("ViewID", new Integer(r.m_viewID));
-
-            return com.starbase.starteam.Item.wrap(h);
+            final int revision = r.m_revisionID.getRevision();
+            return newHistoryItem(_item, r.m_revisionID.getObjectID(),
+                    revision, r.m_pathRevision - revision - 1, r.m_viewID,
+                    r.m_time, r.m_userID, r.m_dotNotation, r.m_comment);
         }
     }
 }
@@ -4,7 +4,7 @@ import java.io.IOException;
 
 import System.Exception;
 
-import com.aap.gitst.Repo;
+import com.aap.gitst.HistoryCache;
 import com.starteam.exceptions.CommandAbortedException;
 
 /**
@@ -13,33 +13,97 @@ import com.starteam.exceptions.CommandAbortedException;
 @SuppressWarnings("deprecation")
 public class Internals12 {
 
-    public static com.starbase.starteam.Item[] getHistory(final Repo repo,
+    public static com.starbase.starteam.Item[] getHistory(
+            final com.starbase.starteam.Server connection,
             final com.starbase.starteam.Item i) {
-        final com.starbase.starteam.Server connection = repo
-                .getIdleConnection();
-
-        try {
-            final com.starteam.Server server = connection.unwrap();
-            final com.starteam.Item item = (com.starteam.Item) i.unwrap();
-            final Connection c = server.useConnection();
-            final CmdGetHistory cmd = new CmdGetHistory(item);
-            cmd.exec(c, server.getSession().getID(),
-                    server.getViewSession(item.getView()).getID(), item
-                            .getType().getClassID());
-            return cmd.getHistory();
-        } finally {
-            repo.releaseConnection(connection);
+        return getHistorySequentially(connection,
+                new com.starbase.starteam.Item[] { i }, new double[1])[0];
+    }
+
+    /**
+     * Loads the histories of the items sending the commands one after another
+     * over the same connection. Each item costs a round trip, the commands
+     * are not combined into one request.
+     *
+     * @param connection
+     *            the connection to send the commands over.
+     * @param since
+     *            for each item, the time of the oldest revision to be
+     *            returned or 0 for the entire history.
+     */
+    public static com.starbase.starteam.Item[][] getHistorySequentially(
+            final com.starbase.starteam.Server connection,
+            final com.starbase.starteam.Item[] items, final double[] since) {
+        final com.starteam.Server server = connection.unwrap();
+        final Connection c = server.useConnection();
+        final com.starteam.util.GUID session = server.getSession().getID();
+        final com.starbase.starteam.Item[][] history = new com.starbase.starteam.Item[items.length][];
+
+        for (int n = 0; n < items.length; n++) {
+            final com.starteam.Item item = (com.starteam.Item) items[n]
+                    .unwrap();
+            final CmdGetHistory cmd = new CmdGetHistory(item, since[n]);
+            cmd.exec(c, session, server.getViewSession(item.getView())
+                    .getID(), item.getType().getClassID());
+            history[n] = cmd.getHistory();
         }
+
+        return history;
+    }
+
+    public static com.starbase.starteam.Item[] createHistory(
+            final com.starbase.starteam.Item i,
+            final HistoryCache.Revision[] revisions) {
+        final com.starteam.Item item = (com.starteam.Item) i.unwrap();
+        final com.starbase.starteam.Item[] history = new com.starbase.starteam.Item[revisions.length];
+
+        for (int n = 0; n < revisions.length; n++) {
+            final HistoryCache.Revision r = revisions[n];
+            history[n] = newHistoryItem(item, r.getId(), r.getRevision(),
+                    r.getPathRevision(), r.getViewId(), r.getTime(),
+                    r.getUserId(), r.getDotNotation(), r.getComment());
+        }
+
+        return history;
+    }
+
+    private static com.starbase.starteam.Item newHistoryItem(
+            final com.starteam.Item item, final int id,
+            final int revision, final int pathRevision, final int viewId,
+            final double time, final int userId, final String dotNotation,
+            final String comment) {
+        final com.starteam.Server server = item.getServer();
+        final com.starteam.Type type = item.getType();
+        final com.starteam.util.DateTime t = new com.starteam.util.DateTime(
+                time);
+        final com.starteam.Item h = server.newItem(type,
+                item.getView(), false, true);
+
+        h.setSnapshotTime(t);
+        h.setParentFolder(item.getParentFolder());
+        h.setVMID(item.getID());
+        h.initializeReplicaValue("RevisionNumber", new Integer(revision));
+        h.initializeReplicaValue("ID", new Integer(id));
+        h.initializeReplicaValue("ModifiedTime", t);
+        h.initializeReplicaValue("DotNotation", dotNotation);
+        h.initializeReplicaValue("Comment", comment);
+        h.initializeReplicaValue("ModifiedUserID", new Integer(userId));
+        h.initializeReplicaValue("PathRevision", new Integer(pathRevision));
+        h.initializeReplicaValue("ViewID", new Integer(viewId));
+
+        return com.starbase.starteam.Item.wrap(h);
     }
 
     private static class CmdGetHistory extends CommandMacro {
         private static final CommandRoute _route = new CommandRoute(
                 -2147483648, 524288, 2010, "PROJ_CMD_GET_ITEMS_HISTORY");
         private final com.starteam.Item _item;
+        private final double _since;
         private com.starbase.starteam.Item[] _history;
 
-        public CmdGetHistory(final com.starteam.Item item) {
+        public CmdGetHistory(final com.starteam.Item item, final double since) {
             _item = item;
+            _since = since;
         }
 
         public com.starbase.starteam.Item[] getHistory() {
@@ -78,7 +142,7 @@ public class Internals12 {
         @Override
         protected void push(final Command c) throws IOException {
             c.writeInt(_item.getID());
-            c.writeTime(0.0D);
+            c.writeTime(_since);
 
             if ((c.supports("1.38"))) {
                 c.writeBoolean(true);
@@ -96,29 +160,10 @@ public class Internals12 {
         }
 
         private com.starbase.starteam.Item wrap(final ItemRevisionEX r) {
-            final com.starteam.Server server = _item.getServer();
-            final com.starteam.Type type = _item.getType();
-            final com.starteam.util.DateTime time = new com.starteam.util.DateTime(
-                    r.m_time);
-            final com.starteam.Item h = server.newItem(type, _item.getView(),
-                    false, true);
-
-            h.setSnapshotTime(time);
-            h.setParentFolder(_item.getParentFolder());
-            h.setVMID(_item.getID());
-            h.initializeReplicaValue("RevisionNumber", new Integer(
-                    r.m_revisionID.getRevisionNumber()));
-            h.initializeReplicaValue("ID",
-                    new Integer(r.m_revisionID.getObjectID()));
-            h.initializeReplicaValue("ModifiedTime", time);
-            h.initializeReplicaValue("DotNotation", r.m_dotNotation);
-            h.initializeReplicaValue("Comment", r.m_comment);
-            h.initializeReplicaValue("ModifiedUserID", new Integer(r.m_userID));
-            h.initializeReplicaValue("PathRevision", new Integer(
-                    r.m_pathRevision - r.m_revisionID.getRevisionNumber() - 1));
-            h.initializeReplicaValue("ViewID", new Integer(r.m_viewID));
-
-            return com.starbase.starteam.Item.wrap(h);
+            final int revision = r.m_revisionID.getRevisionNumber();
+            return newHistoryItem(_item, r.m_revisionID.getObjectID(),
+                    revision, r.m_pathRevision - revision - 1, r.m_viewID,
+                    r.m_time, r.m_userID, r.m_dotNotation, r.m_comment);
         }
     }
 }